@@ -0,0 +1,216 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+package ds.framework.v4.common;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * pool of unused bitmaps bucketed by their allocation size - to be reused as BitmapFactory.Options.inBitmap<br/>
+ * only mutable ARGB_8888 bitmaps are kept<br/>
+ * before KitKat a bitmap can only be reused for an image of exactly the same size
+ */
+public class BitmapPool {
+
+	// do not use a bitmap for decoding which is much bigger than needed
+	private static final int MAX_SIZE_MULTIPLIER = 4;
+
+	final private TreeMap<Integer, ArrayList<Bitmap>> mBuckets = new TreeMap<Integer, ArrayList<Bitmap>>();
+
+	private long mMaxSize;
+	private long mSize;
+
+	private int mHitCount;
+	private int mMissCount;
+	private int mPutCount;
+	private int mEvictionCount;
+
+	/**
+	 *
+	 * @param maxSize - in bytes
+	 */
+	public BitmapPool(long maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * give a bitmap to the pool<br/>
+	 * !note: the bitmap must not be used anywhere else after this
+	 *
+	 * @param bmp
+	 * @return true if the bitmap was kept
+	 */
+	public synchronized boolean put(Bitmap bmp) {
+		if (bmp == null || bmp.isRecycled() || !bmp.isMutable() || bmp.getConfig() != Bitmap.Config.ARGB_8888) {
+			return false;
+		}
+
+		final int size = getSize(bmp);
+		if (size > mMaxSize) {
+			return false;
+		}
+
+		ArrayList<Bitmap> bucket = mBuckets.get(size);
+		if (bucket == null) {
+			bucket = new ArrayList<Bitmap>();
+			mBuckets.put(size, bucket);
+		}
+		bucket.add(bmp);
+		mSize += size;
+		++mPutCount;
+
+		trimToSize(mMaxSize);
+		return true;
+	}
+
+	/**
+	 * get a bitmap which can be used to decode an ARGB_8888 image of the given size into
+	 *
+	 * @param width
+	 * @param height
+	 * @return null if there is none
+	 */
+	public synchronized Bitmap get(int width, int height) {
+		final int needed = width * height * 4;
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			Map.Entry<Integer, ArrayList<Bitmap>> entry = mBuckets.ceilingEntry(needed);
+			if (entry != null && entry.getKey() <= (long) needed * MAX_SIZE_MULTIPLIER) {
+				++mHitCount;
+				return removeFromBucket(entry.getKey(), entry.getValue(), entry.getValue().size() - 1);
+			}
+		} else {
+			final ArrayList<Bitmap> bucket = mBuckets.get(needed);
+			if (bucket != null) {
+				for(int i = bucket.size() - 1; i >= 0; --i) {
+					final Bitmap bmp = bucket.get(i);
+					if (bmp.getWidth() == width && bmp.getHeight() == height) {
+						++mHitCount;
+						return removeFromBucket(needed, bucket, i);
+					}
+				}
+			}
+		}
+
+		++mMissCount;
+		return null;
+	}
+
+	/**
+	 * change the maximum size of the pool
+	 *
+	 * @param maxSize
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * drop all bitmaps
+	 */
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	public synchronized long getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * number of times get() returned a bitmap
+	 *
+	 * @return
+	 */
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * number of times get() returned null
+	 *
+	 * @return
+	 */
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized int getPutCount() {
+		return mPutCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final int accesses = mHitCount + mMissCount;
+		return "BitmapPool[size=" + mSize + ",maxSize=" + mMaxSize + ",hits=" + mHitCount + ",misses=" + mMissCount +
+				",hitRate=" + (accesses == 0 ? 0 : 100 * mHitCount / accesses) + "%]";
+	}
+
+	/**
+	 * drop the biggest bitmaps till size is below or equal to maxSize
+	 *
+	 * @param maxSize
+	 */
+	private void trimToSize(long maxSize) {
+		while(mSize > maxSize && !mBuckets.isEmpty()) {
+			final Map.Entry<Integer, ArrayList<Bitmap>> entry = mBuckets.lastEntry();
+			final Bitmap bmp = removeFromBucket(entry.getKey(), entry.getValue(), 0);
+			bmp.recycle();
+			++mEvictionCount;
+		}
+	}
+
+	/**
+	 *
+	 * @param size
+	 * @param bucket
+	 * @param index
+	 * @return
+	 */
+	private Bitmap removeFromBucket(int size, ArrayList<Bitmap> bucket, int index) {
+		final Bitmap bmp = bucket.remove(index);
+		if (bucket.isEmpty()) {
+			mBuckets.remove(size);
+		}
+		mSize -= size;
+		return bmp;
+	}
+
+	/**
+	 * memory used by a bitmap
+	 *
+	 * @param bmp
+	 * @return
+	 */
+	public static int getSize(Bitmap bmp) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return bmp.getAllocationByteCount();
+		}
+		return bmp.getByteCount();
+	}
+}
@@ -15,12 +15,16 @@
 */
 package ds.framework.v4.common;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
@@ -31,10 +35,16 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.MediaStore;
 
+import ds.framework.v4.io.HttpTransport;
+
 public class Bitmaps {
 	
+	// bytes kept in memory while reading image bounds from a stream (see getResizedImageFromHttpStream)
+	private static final int HEADER_MEMORY_LIMIT = 64 * 1024;
+	
 	/**
 	 * 
 	 * @param url
@@ -90,6 +100,26 @@ public class Bitmaps {
 		return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
 	}
 	
+	/**
+	 * decode reusing a bitmap from the pool if there is a fitting one
+	 * 
+	 * @param bytes
+	 * @param pool
+	 * @return
+	 */
+	public static Bitmap createBitmap(byte[] bytes, BitmapPool pool) {
+		if (pool == null) {
+			return createBitmap(bytes);
+		}
+		
+		BitmapFactory.Options o = new BitmapFactory.Options();
+		o.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(bytes, 0, bytes.length, o);
+		
+		o.inJustDecodeBounds = false;
+		return decodeByteArray(bytes, o, pool);
+	}
+	
 	/**
 	 * create a thumbnail (png, 100 quality) from byte array<br/>
 	 * this first creates a bitmap from the byte array, then scales that bitmap<br/>
@@ -239,6 +269,18 @@ public class Bitmaps {
 	 * @return
 	 */
 	public static Bitmap createThumbnailApprox(byte[] byteArray, int approxWidth, int approxHeight) {
+		return createThumbnailApprox(byteArray, approxWidth, approxHeight, null);
+	}
+	
+	/**
+	 * 
+	 * @param byteArray
+	 * @param approxWidth
+	 * @param approxHeight
+	 * @param pool - reuse a bitmap from this pool if there is a fitting one (may be null)
+	 * @return
+	 */
+	public static Bitmap createThumbnailApprox(byte[] byteArray, int approxWidth, int approxHeight, BitmapPool pool) {
 		try {
 			//Decode image size
 	        BitmapFactory.Options o = new BitmapFactory.Options();
@@ -255,9 +297,9 @@ public class Bitmaps {
 	        }
 	
 	        //Decode with inSampleSize
-	        BitmapFactory.Options o2 = new BitmapFactory.Options();
-	        o2.inSampleSize = scale;
-	        bmp = BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length, o2);
+	        o.inJustDecodeBounds = false;
+	        o.inSampleSize = scale;
+	        bmp = decodeByteArray(byteArray, o, pool);
 	
 			return bmp;
 		} catch(Throwable e) {
@@ -339,6 +381,18 @@ public class Bitmaps {
 	 * @return
 	 */
 	public static Bitmap getThumbnail(String imageFileName, int approxWidth, int approxHeight) {
+		return getThumbnail(imageFileName, approxWidth, approxHeight, null);
+	}
+	
+	/**
+	 * 
+	 * @param imageFileName
+	 * @param approxWidth
+	 * @param approxHeight
+	 * @param pool - reuse a bitmap from this pool if there is a fitting one (may be null)
+	 * @return
+	 */
+	public static Bitmap getThumbnail(String imageFileName, int approxWidth, int approxHeight, BitmapPool pool) {
 		final File f = new File(imageFileName);
 		if (!f.exists()) {
 			return null;
@@ -362,10 +416,24 @@ public class Bitmaps {
 	        }
 	
 	        //Decode with inSampleSize
-	        BitmapFactory.Options o2 = new BitmapFactory.Options();
-	        o2.inSampleSize = scale;
+	        o.inJustDecodeBounds = false;
+	        o.inSampleSize = scale;
+	        prepareReuse(o, pool);
 	        fis = new FileInputStream(f);
-	        bmp = BitmapFactory.decodeStream(fis, null, o2);
+	        try {
+	        	bmp = BitmapFactory.decodeStream(fis, null, o);
+	        } catch(IllegalArgumentException e) {
+	        	if (o.inBitmap == null) {
+	        		throw(e);
+	        	}
+	        	
+	        	// pooled bitmap could not be used after all - it is still good for others
+	        	fis.close();
+	        	pool.put(o.inBitmap);
+	        	o.inBitmap = null;
+	        	fis = new FileInputStream(f);
+	        	bmp = BitmapFactory.decodeStream(fis, null, o);
+	        }
 	        fis.close();
 	
 			return bmp;
@@ -376,6 +444,9 @@ public class Bitmaps {
 	}
 	
 	/**
+	 * download and decode an image approximately inside approxWidth x approxHeight<br/>
+	 * the image is downloaded only once - bytes read while decoding bounds are kept in memory (or in a
+	 * temporary file if there are too many of them) and read again for decoding
 	 * 
 	 * @param url
 	 * @param approxWidth
@@ -383,13 +454,25 @@ public class Bitmaps {
 	 * @return
 	 */
 	public static Bitmap getResizedImageFromHttpStream(URL url, int approxWidth, int approxHeight) throws IOException {
-		InputStream stream = null;
+		return getResizedImageFromHttpStream(url, approxWidth, approxHeight, null);
+	}
+	
+	/**
+	 * 
+	 * @param url
+	 * @param approxWidth
+	 * @param approxHeight
+	 * @param spillDir - directory for the temporary file (null for the default temporary directory)
+	 * @return
+	 */
+	public static Bitmap getResizedImageFromHttpStream(URL url, int approxWidth, int approxHeight, File spillDir) throws IOException {
+		ReplayInputStream stream = null;
 		try {
 			//Decode image size
 	        BitmapFactory.Options o = new BitmapFactory.Options();
 	        
 	        o.inJustDecodeBounds = true;
-	        stream = getFlushedHttpStream(url);
+	        stream = new ReplayInputStream(getFlushedHttpStream(url), HEADER_MEMORY_LIMIT, spillDir);
 	        BitmapFactory.decodeStream(stream, null, o);
 Debug.logD("Bitmaps", "original size: "+ o.outWidth + "x" + o.outHeight + " ");
 	        Bitmap bmp = null;
@@ -400,12 +483,14 @@ Debug.logD("Bitmaps", "original size: "+ o.outWidth + "x" + o.outHeight + " ");
 	            		(int) Math.pow(2, (int) Math.ceil(Math.log((double) approxWidth / (double) o.outWidth) / Math.log(0.5))));
 	        }
 
-	        //Decode with inSampleSize
-	        BitmapFactory.Options o2 = new BitmapFactory.Options();
-	        o2.inSampleSize = scale;
-	        stream = getFlushedHttpStream(url);
-	        bmp = BitmapFactory.decodeStream(stream ,null, o2);
-Debug.logD("Bitmaps", "new size: "+ bmp.getWidth() + "x" + bmp.getHeight() + " ");	
+	        //Decode with inSampleSize - from the same download
+	        o.inJustDecodeBounds = false;
+	        o.inSampleSize = scale;
+	        stream.rewind();
+	        bmp = BitmapFactory.decodeStream(stream ,null, o);
+	        if (bmp != null) {
+Debug.logD("Bitmaps", "new size: "+ bmp.getWidth() + "x" + bmp.getHeight() + " ");
+	        }
 			return bmp;
 		} catch(IOException e) {
 			e.printStackTrace();
@@ -417,6 +502,57 @@ Debug.logD("Bitmaps", "new size: "+ bmp.getWidth() + "x" + bmp.getHeight() + " "
 		}
 	}
 
+	/**
+	 * decode byte array with options (bounds and inSampleSize already set)<br/>
+	 * reuses a bitmap from the pool if there is a fitting one
+	 * 
+	 * @param bytes
+	 * @param o
+	 * @param pool
+	 * @return
+	 */
+	private static Bitmap decodeByteArray(byte[] bytes, BitmapFactory.Options o, BitmapPool pool) {
+		prepareReuse(o, pool);
+		try {
+			return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, o);
+		} catch(IllegalArgumentException e) {
+			if (o.inBitmap == null) {
+				throw(e);
+			}
+			
+			// pooled bitmap could not be used after all - it is still good for others
+			pool.put(o.inBitmap);
+			o.inBitmap = null;
+			return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, o);
+		}
+	}
+	
+	/**
+	 * set options to decode into a bitmap from the pool - with a pool the result is mutable so it can go into the
+	 * pool later, without one the decoder's immutable path is kept<br/>
+	 * o.outWidth, o.outHeight and o.inSampleSize must be set
+	 * 
+	 * @param o
+	 * @param pool
+	 */
+	private static void prepareReuse(BitmapFactory.Options o, BitmapPool pool) {
+		if (pool == null) {
+			return;
+		}
+		o.inMutable = true;
+		if (o.outWidth <= 0 || o.outHeight <= 0) {
+			return;
+		}
+		
+		final int sampleSize = Math.max(1, o.inSampleSize);
+		if (sampleSize != 1 && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+			
+			// not supported
+			return;
+		}
+		o.inBitmap = pool.get((o.outWidth + sampleSize - 1) / sampleSize, (o.outHeight + sampleSize - 1) / sampleSize);
+	}
+	
 	/**
 	 * 
 	 * @param activity
@@ -440,18 +576,19 @@ Debug.logD("Bitmaps", "new size: "+ bmp.getWidth() + "x" + bmp.getHeight() + " "
 	}
 	
 	/**
+	 * !note: close the stream when finished so the connection can be reused (see HttpTransport)
 	 * 
 	 * @param url
 	 * @return
 	 * @throws IOException
 	 */
 	public static FlushedInputStream getFlushedHttpStream(URL url) throws IOException {
-		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		HttpURLConnection conn = HttpTransport.open(url);
 		conn.setDoInput(true);
 		conn.setUseCaches(false);
 		conn.connect();
 
-		InputStream stream = conn.getInputStream();
+		InputStream stream = HttpTransport.getInputStream(conn);
 		try {
       		stream.reset();
       	} catch(Throwable e) {
@@ -708,6 +845,197 @@ Debug.logD("Bitmaps", "new size: "+ bmp.getWidth() + "x" + bmp.getHeight() + " "
 		return (bitmap);
 	}
 	
+	/**
+	 * @class ReplayInputStream
+	 * 
+	 * remembers everything read until rewind() so it can be read once more<br/>
+	 * keeps up to 'memoryLimit' bytes in memory, above that spills them into a temporary file
+	 */
+	public static class ReplayInputStream extends FilterInputStream {
+		final private int mMemoryLimit;
+		final private File mSpillDir;
+		
+		private ByteArrayOutputStream mMemory = new ByteArrayOutputStream();
+		private File mSpillFile;
+		private OutputStream mSpill;
+		private boolean mRecording = true;
+		private InputStream mReplay;
+		
+		/**
+		 * 
+		 * @param inputStream
+		 * @param memoryLimit
+		 * @param spillDir - null for the default temporary directory
+		 */
+		public ReplayInputStream(InputStream inputStream, int memoryLimit, File spillDir) {
+			super(inputStream);
+			mMemoryLimit = memoryLimit;
+			mSpillDir = spillDir;
+		}
+		
+		/**
+		 * stop recording and read what was read so far again before continuing with the rest of the stream<br/>
+		 * !note: can be called only once
+		 * 
+		 * @throws IOException
+		 */
+		public void rewind() throws IOException {
+			if (!mRecording) {
+				throw new IOException("already rewound");
+			}
+			mRecording = false;
+			if (mSpill != null) {
+				mSpill.close();
+				mSpill = null;
+				mReplay = new FileInputStream(mSpillFile);
+			} else {
+				mReplay = new ByteArrayInputStream(mMemory.toByteArray());
+				mMemory = null;
+			}
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (mReplay != null) {
+				final int b = mReplay.read();
+				if (b != -1) {
+					return b;
+				}
+				closeReplay();
+			}
+			final int b = in.read();
+			if (b != -1 && mRecording) {
+				record(b);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if (mReplay != null) {
+				final int read = mReplay.read(buffer, offset, count);
+				if (read > 0) {
+					return read;
+				}
+				closeReplay();
+			}
+			final int read = in.read(buffer, offset, count);
+			if (read > 0 && mRecording) {
+				record(buffer, offset, read);
+			}
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			
+			// read so skipped bytes are recorded too
+			final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			while(skipped < n) {
+				final int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+				if (read <= 0) {
+					break;
+				}
+				skipped += read;
+			}
+			return skipped;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return (mReplay != null ? mReplay.available() : 0) + in.available();
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		@Override
+		public void mark(int readlimit) {
+			;
+		}
+		
+		@Override
+		public void reset() throws IOException {
+			throw new IOException("mark/reset not supported");
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				if (mSpill != null) {
+					mSpill.close();
+					mSpill = null;
+				}
+				closeReplay();
+			} finally {
+				super.close();
+			}
+		}
+		
+		/**
+		 * 
+		 * @param b
+		 * @throws IOException
+		 */
+		private void record(int b) throws IOException {
+			spillIfNeeded(1);
+			if (mSpill != null) {
+				mSpill.write(b);
+			} else {
+				mMemory.write(b);
+			}
+		}
+		
+		/**
+		 * 
+		 * @param buffer
+		 * @param offset
+		 * @param count
+		 * @throws IOException
+		 */
+		private void record(byte[] buffer, int offset, int count) throws IOException {
+			spillIfNeeded(count);
+			if (mSpill != null) {
+				mSpill.write(buffer, offset, count);
+			} else {
+				mMemory.write(buffer, offset, count);
+			}
+		}
+		
+		/**
+		 * continue in a file if 'count' more bytes would be too much for memory
+		 * 
+		 * @param count
+		 * @throws IOException
+		 */
+		private void spillIfNeeded(int count) throws IOException {
+			if (mSpill == null && mMemory.size() + count > mMemoryLimit) {
+				mSpillFile = File.createTempFile("replay", ".part", mSpillDir);
+				mSpill = new BufferedOutputStream(new FileOutputStream(mSpillFile));
+				mMemory.writeTo(mSpill);
+				mMemory = null;
+			}
+		}
+		
+		/**
+		 * 
+		 * @throws IOException
+		 */
+		private void closeReplay() throws IOException {
+			if (mReplay != null) {
+				mReplay.close();
+				mReplay = null;
+			}
+			if (mSpillFile != null) {
+				mSpillFile.delete();
+				mSpillFile = null;
+			}
+		}
+	}
+	
 	// for jpegs
 	public static class FlushedInputStream extends FilterInputStream {
         public FlushedInputStream(InputStream inputStream) {
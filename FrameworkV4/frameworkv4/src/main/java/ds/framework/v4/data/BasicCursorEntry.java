@@ -15,15 +15,24 @@
 */
 package ds.framework.v4.data;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 import android.database.Cursor;
 
 /**
- * data object which gets it's values from a cursor
+ * data object which gets it's values from a cursor<br/>
+ * column indexes are looked up once per cursor - for reading many rows register the columns (registerColumn)
+ * and use the getters taking a CursorColumn which do not look up anything
  */
 public class BasicCursorEntry extends AbsAsyncData implements BasicEntryInterface {
 
 	protected Cursor mCursor;
 	
+	// column indexes in mIndexedCursor by field - see getColumnIndex
+	final private HashMap<String, Integer> mColumnIndexes = new HashMap<String, Integer>();
+	final private ArrayList<CursorColumn> mColumns = new ArrayList<CursorColumn>();
+	private Cursor mIndexedCursor;
 	
 	public BasicCursorEntry() {
 		super();
@@ -49,13 +58,89 @@ public class BasicCursorEntry extends AbsAsyncData implements BasicEntryInterfac
 		return mCursor == null || mCursor.getCount() == 0;
 	}
 
+	/**
+	 * index of field in the cursor - looked up once per cursor
+	 * 
+	 * @param field
+	 * @return -1 if there is no such column
+	 */
+	public int getColumnIndex(String field) {
+		if (mCursor != mIndexedCursor) {
+			indexColumns();
+		}
+		Integer index = mColumnIndexes.get(field);
+		if (index == null) {
+			try {
+				index = mCursor == null ? -1 : mCursor.getColumnIndex(field);
+			} catch(Throwable e) {
+				index = -1;
+			}
+			mColumnIndexes.put(field, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * register a column to read with the getters taking a CursorColumn<br/>
+	 * its index is resolved now and each time the cursor changes so reading a value needs no lookup<br/>
+	 * !note: register once (ie. when creating the adapter) and keep the result
+	 * 
+	 * @param field
+	 * @return
+	 */
+	public CursorColumn registerColumn(String field) {
+		for(CursorColumn column : mColumns) {
+			if (column.mField.equals(field)) {
+				return column;
+			}
+		}
+		
+		final CursorColumn column = new CursorColumn(field);
+		column.mIndex = getColumnIndex(field);
+		mColumns.add(column);
+		return column;
+	}
+	
+	/**
+	 * forget the column indexes and resolve the registered columns for the current cursor
+	 */
+	protected void indexColumns() {
+		mIndexedCursor = mCursor;
+		mColumnIndexes.clear();
+		for(CursorColumn column : mColumns) {
+			column.mIndex = getColumnIndex(column.mField);
+		}
+	}
+
 	/**
 	 *
 	 * @param field
 	 * @return
 	 */
 	public Integer getInt(String field) {
-		return getInt(mCursor, field);
+		return getIntAt(getColumnIndex(field));
+	}
+	
+	/**
+	 * 
+	 * @param column
+	 * @return
+	 */
+	public Integer getInt(CursorColumn column) {
+		return getIntAt(getColumnIndex(column));
+	}
+	
+	/**
+	 * 
+	 * @param index
+	 * @return
+	 */
+	private Integer getIntAt(int index) {
+		try {
+			return mCursor.getInt(index);
+		} catch(Throwable e) {
+			return null;
+		}
 	}
 
     /**
@@ -78,7 +163,29 @@ public class BasicCursorEntry extends AbsAsyncData implements BasicEntryInterfac
      * @return
      */
     public Long getLong(String field) {
-        return getLong(mCursor, field);
+        return getLongAt(getColumnIndex(field));
+    }
+
+    /**
+     *
+     * @param column
+     * @return
+     */
+    public Long getLong(CursorColumn column) {
+        return getLongAt(getColumnIndex(column));
+    }
+
+    /**
+     *
+     * @param index
+     * @return
+     */
+    private Long getLongAt(int index) {
+        try {
+            return mCursor.getLong(index);
+        } catch(Throwable e) {
+            return null;
+        }
     }
 
     /**
@@ -101,7 +208,33 @@ public class BasicCursorEntry extends AbsAsyncData implements BasicEntryInterfac
 	 * @return
 	 */
 	public String getString(String field) {
-		return getString(mCursor, field);
+		return getStringAt(getColumnIndex(field));
+	}
+	
+	/**
+	 * 
+	 * @param column
+	 * @return
+	 */
+	public String getString(CursorColumn column) {
+		return getStringAt(getColumnIndex(column));
+	}
+	
+	/**
+	 * 
+	 * @param index
+	 * @return
+	 */
+	private String getStringAt(int index) {
+		try {
+			if (index != -1 && !mCursor.isNull(index)) {
+				return mCursor.getString(index);
+			} else {
+				return "";
+			}
+		} catch(Throwable e) {
+			return "";
+		}
 	}
 
 	/**
@@ -129,7 +262,29 @@ public class BasicCursorEntry extends AbsAsyncData implements BasicEntryInterfac
      * @return
      */
 	public boolean getBoolean(String field) {
-		return getBoolean(mCursor, field);
+		return getBooleanAt(getColumnIndex(field));
+	}
+
+    /**
+     *
+     * @param column
+     * @return
+     */
+	public boolean getBoolean(CursorColumn column) {
+		return getBooleanAt(getColumnIndex(column));
+	}
+
+    /**
+     *
+     * @param index
+     * @return
+     */
+	private boolean getBooleanAt(int index) {
+		try {
+			return mCursor.getInt(index) > 0;
+		} catch(Throwable e) {
+			return false;
+		}
 	}
 
     /**
@@ -147,7 +302,24 @@ public class BasicCursorEntry extends AbsAsyncData implements BasicEntryInterfac
 	}
 	
 	public double getDouble(String field) {
-		return getDouble(mCursor, field);
+		return getDoubleAt(getColumnIndex(field));
+	}
+	
+	public double getDouble(CursorColumn column) {
+		return getDoubleAt(getColumnIndex(column));
+	}
+
+    /**
+     *
+     * @param index
+     * @return
+     */
+	private double getDoubleAt(int index) {
+		try {
+			return mCursor.getDouble(index);
+		} catch(Throwable e) {
+			return 0.0d;
+		}
 	}
 
     /**
@@ -172,6 +344,7 @@ public class BasicCursorEntry extends AbsAsyncData implements BasicEntryInterfac
 	 */
 	public void setCursor(Cursor c) {
 		mCursor = c;
+		indexColumns();
 	}
 	
 	/**
@@ -186,4 +359,42 @@ public class BasicCursorEntry extends AbsAsyncData implements BasicEntryInterfac
 	protected LoaderThread createLoader() {
 		return null;
 	}
+	
+	/**
+	 * 
+	 * @param column
+	 * @return
+	 */
+	private int getColumnIndex(CursorColumn column) {
+		if (mCursor != mIndexedCursor) {
+			indexColumns();
+		}
+		return column.mIndex;
+	}
+	
+	/**
+	 * @class CursorColumn
+	 * 
+	 * a column registered in a BasicCursorEntry - see registerColumn
+	 */
+	public static class CursorColumn {
+		final private String mField;
+		private int mIndex = -1;
+		
+		private CursorColumn(String field) {
+			mField = field;
+		}
+		
+		public String getField() {
+			return mField;
+		}
+		
+		/**
+		 * 
+		 * @return -1 if the current cursor has no such column
+		 */
+		public int getIndex() {
+			return mIndex;
+		}
+	}
 }
@@ -15,14 +15,36 @@
 */
 package ds.framework.v4.data;
 
+import java.util.HashSet;
+import java.util.List;
+
 import android.database.Cursor;
 import ds.framework.v4.common.Debug;
+import ds.framework.v4.db.Db;
+import ds.framework.v4.db.DbChanges;
 import ds.framework.v4.db.TableQuery;
 
 public abstract class CursorData extends BasicCursorEntry {
 
     private TableQuery mLoaderQuery;
 
+    // copy the loaded rows into arrays and close the cursor right away - see CursorSnapshot
+    protected boolean mSnapshot = false;    // change only in constructor
+
+    // reload when a table of the loader query is written through Db and tell the OnRowsChangedListener
+    // which rows were removed / inserted / changed instead of a whole onDataLoaded - see getRowIdColumn()
+    protected boolean mTrackChanges = false;    // change only in constructor
+
+    private DbChanges.OnChangeListener mChangeListener;
+    private OnRowsChangedListener mRowsChangedListener;
+    private OnDataLoadListener mLastListener;
+
+    // row ids of the current cursor (when tracking changes)
+    private long[] mRowIds;
+
+    // changes arrived while loading - the load may have read before they were committed
+    private DbChanges mPendingChanges;
+
     public CursorData() {
         super();
     }
@@ -64,15 +86,271 @@ public abstract class CursorData extends BasicCursorEntry {
 			mCursor = null;
 			mValid = false;
 		}
+		indexColumns();
 	}
 
     @Override
     protected void load(final OnDataLoadListener listener, final int loadId) {
         mLoaderQuery = getLoaderQuery();
 
+        if (mTrackChanges) {
+            if (!(listener instanceof ChangesLoadListener)) {
+                mLastListener = listener;
+            }
+            if (mChangeListener == null) {
+                mChangeListener = new DbChanges.OnChangeListener() {
+
+                    @Override
+                    public void onDbChanged(DbChanges changes) {
+                        onTablesChanged(changes);
+                    }
+                };
+                Db.addOnChangeListener(mChangeListener);
+            }
+        }
+
         super.load(listener, loadId);
     }
 
+    @Override
+    synchronized public void setOnDataLoadListener(OnDataLoadListener listener) {
+        super.setOnDataLoadListener(listener);
+
+        // a reload for changes goes to the current listener - or waits for the next loadIfNeeded if there is none
+        if (mTrackChanges && !(listener instanceof ChangesLoadListener)) {
+            mLastListener = listener;
+        }
+    }
+
+    /**
+     * set who to tell about the rows changed when reloading for changes - see mTrackChanges
+     *
+     * @param listener
+     */
+    public void setOnRowsChangedListener(OnRowsChangedListener listener) {
+        mRowsChangedListener = listener;
+    }
+
+    /**
+     * name of the column holding the unique id of the rows - override when the loader query selects it by an other name<br/>
+     * return null to always reload as a whole (with onDataLoaded) when the tables change
+     *
+     * @return
+     */
+    protected String getRowIdColumn() {
+        return "id";
+    }
+
+    /**
+     * called (on the main thread) when tables were written through Db while tracking changes
+     *
+     * @param changes
+     */
+    protected void onTablesChanged(DbChanges changes) {
+        final TableQuery query = mLoaderQuery;
+        if (query == null) {
+
+            // nothing loaded yet
+            return;
+        }
+
+        final List<String> tables = query.getTableNames();
+        if (!changes.touches(tables)) {
+            return;
+        }
+
+        if (isLoading()) {
+
+            // reload when the current load is finished
+            if (mPendingChanges == null) {
+                mPendingChanges = new DbChanges();
+            }
+            mPendingChanges.addAll(changes);
+            return;
+        }
+
+        if (!isValid() || !needsReload(changes, tables)) {
+            return;
+        }
+
+        if (mLastListener == null) {
+
+            // nobody to show it to - loadIfNeeded reloads it when there is
+            invalidate();
+            return;
+        }
+
+        load(new ChangesLoadListener(mLastListener, changes, mRowIds), getLoadId());
+    }
+
+    @Override
+    protected void onDataLoaded(Object result, OnDataLoadListener listener) {
+        super.onDataLoaded(result, listener);
+
+        final DbChanges pending = mPendingChanges;
+        mPendingChanges = null;
+        if (pending != null) {
+            onTablesChanged(pending);
+        }
+    }
+
+    @Override
+    synchronized protected void invalidateInner() {
+        super.invalidateInner();
+
+        // reloaded as a whole anyway - changes are listened to again from the next load
+        mPendingChanges = null;
+        if (mChangeListener != null) {
+            Db.removeOnChangeListener(mChangeListener);
+            mChangeListener = null;
+        }
+    }
+
+    /**
+     * reload is not needed when only rows not loaded were deleted from the main table
+     *
+     * @param changes
+     * @param tables
+     * @return
+     */
+    private boolean needsReload(DbChanges changes, List<String> tables) {
+        final long[] ids = mRowIds;
+        if (ids == null || changes.getTables().size() > 1) {
+            return true;
+        }
+
+        final DbChanges.TableChanges main = changes.get(tables.get(0));
+        if (main == null || main.isUnknown() || !main.getInserted().isEmpty() || !main.getUpdated().isEmpty()) {
+            return true;
+        }
+        for(long id : ids) {
+            if (main.getDeleted().contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * tell listener which rows changed going from oldIds to newIds<br/>
+     * removals are reported from the end, insertions and changes from the start so each position is valid when
+     * it is reported<br/>
+     * !note: returns false (and reports nothing) when rows which stayed changed their order
+     *
+     * @param listener
+     * @param changes
+     * @param oldIds
+     * @param newIds
+     * @return
+     */
+    private boolean notifyRowChanges(OnRowsChangedListener listener, DbChanges changes, long[] oldIds, long[] newIds) {
+        final HashSet<Long> oldSet = new HashSet<Long>(oldIds.length);
+        for(long id : oldIds) {
+            oldSet.add(id);
+        }
+        final HashSet<Long> newSet = new HashSet<Long>(newIds.length);
+        for(long id : newIds) {
+            newSet.add(id);
+        }
+        if (oldSet.size() != oldIds.length || newSet.size() != newIds.length) {
+
+            // ids are not unique
+            return false;
+        }
+
+        // rows staying have to keep their order
+        int j = 0;
+        for(long id : oldIds) {
+            if (!newSet.contains(id)) {
+                continue;
+            }
+            while(j < newIds.length && !oldSet.contains(newIds[j])) {
+                ++j;
+            }
+            if (j == newIds.length || newIds[j] != id) {
+                return false;
+            }
+            ++j;
+        }
+
+        for(int i = oldIds.length - 1; i >= 0; --i) {
+            if (newSet.contains(oldIds[i])) {
+                continue;
+            }
+            int start = i;
+            while(start > 0 && !newSet.contains(oldIds[start - 1])) {
+                --start;
+            }
+            listener.onRowsRemoved(this, start, i - start + 1);
+            i = start;
+        }
+
+        for(int i = 0; i < newIds.length; ++i) {
+            if (oldSet.contains(newIds[i])) {
+                continue;
+            }
+            int end = i;
+            while(end + 1 < newIds.length && !oldSet.contains(newIds[end + 1])) {
+                ++end;
+            }
+            listener.onRowsInserted(this, i, end - i + 1);
+            i = end;
+        }
+
+        // joined tables may change any row
+        final List<String> tables = mLoaderQuery.getTableNames();
+        final DbChanges.TableChanges main = changes.get(tables.get(0));
+        boolean all = main != null && main.isUnknown();
+        for(int i = 1; i < tables.size() && !all; ++i) {
+            all = changes.get(tables.get(i)) != null;
+        }
+
+        for(int i = 0; i < newIds.length; ++i) {
+            if (!isRowChanged(newIds[i], oldSet, main, all)) {
+                continue;
+            }
+            int end = i;
+            while(end + 1 < newIds.length && isRowChanged(newIds[end + 1], oldSet, main, all)) {
+                ++end;
+            }
+            listener.onRowsChanged(this, i, end - i + 1);
+            i = end;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param id
+     * @param oldSet
+     * @param main
+     * @param all
+     * @return
+     */
+    private static boolean isRowChanged(long id, HashSet<Long> oldSet, DbChanges.TableChanges main, boolean all) {
+        return oldSet.contains(id) && (all || (main != null && main.isChanged(id)));
+    }
+
+    /**
+     * read the ids of all rows - in the loader thread
+     *
+     * @param cursor
+     * @return null if there is no id column
+     */
+    private long[] readRowIds(Cursor cursor) {
+        final String column = getRowIdColumn();
+        final int index = column == null ? -1 : cursor.getColumnIndex(column);
+        if (index == -1) {
+            return null;
+        }
+
+        final long[] ids = new long[cursor.getCount()];
+        for(int i = 0; i < ids.length && cursor.moveToPosition(i); ++i) {
+            ids[i] = cursor.getLong(index);
+        }
+        return ids;
+    }
+
     /**
      * call when 'manual' query refresh needed
      * !note: make sure you're doing the right thing
@@ -138,6 +416,7 @@ public abstract class CursorData extends BasicCursorEntry {
     protected class CursorLoaderThread extends LoaderThread {
 
         protected Cursor mResult;
+        private long[] mResultIds;
 
         @Override
         protected boolean runCycle(Thread in) {
@@ -146,6 +425,12 @@ public abstract class CursorData extends BasicCursorEntry {
                 if (mResult == null) {
                     return false;
                 }
+                if (mSnapshot) {
+                    mResult = CursorSnapshot.create(mResult);
+                }
+                if (mTrackChanges) {
+                    mResultIds = readRowIds(mResult);
+                }
                 mResult.moveToFirst();
             } catch(Throwable e) {
                 Debug.logException(e);
@@ -157,6 +442,7 @@ public abstract class CursorData extends BasicCursorEntry {
         @Override
         protected void onFinished() {
             setCursor(mResult);
+            mRowIds = mResultIds;
 
             super.onFinished();
         }
@@ -183,4 +469,61 @@ public abstract class CursorData extends BasicCursorEntry {
         }
     }
 
+    /**
+     * @class ChangesLoadListener
+     *
+     * reporting a reload for changes as row changes when possible
+     */
+    private class ChangesLoadListener implements OnDataLoadListener {
+
+        final private OnDataLoadListener mListener;
+        final private DbChanges mChanges;
+        final private long[] mOldIds;
+
+        ChangesLoadListener(OnDataLoadListener listener, DbChanges changes, long[] oldIds) {
+            mListener = listener;
+            mChanges = changes;
+            mOldIds = oldIds;
+        }
+
+        @Override
+        public void onDataLoadStart(AbsAsyncData data, int loadId) {
+            mListener.onDataLoadStart(data, loadId);
+        }
+
+        @Override
+        public void onDataLoaded(AbsAsyncData data, int loadId) {
+            final OnRowsChangedListener rowsListener = mRowsChangedListener;
+            final long[] newIds = mRowIds;
+
+            // empty lists are reported as a whole so empty views can be shown / hidden
+            if (rowsListener == null || mOldIds == null || newIds == null || mOldIds.length == 0 || newIds.length == 0 ||
+                    !notifyRowChanges(rowsListener, mChanges, mOldIds, newIds)) {
+                mListener.onDataLoaded(data, loadId);
+            }
+        }
+
+        @Override
+        public void onDataLoadFailed(AbsAsyncData data, int loadId) {
+            mListener.onDataLoadFailed(data, loadId);
+        }
+
+        @Override
+        public void onDataLoadInterrupted(AbsAsyncData data, int loadId) {
+            mListener.onDataLoadInterrupted(data, loadId);
+        }
+    }
+
+    /**
+     * @interface OnRowsChangedListener
+     *
+     * positions are in the rows of the data - removals come first from the end, then insertions and changes
+     * from the start
+     */
+    public interface OnRowsChangedListener {
+        public void onRowsRemoved(CursorData data, int position, int count);
+        public void onRowsInserted(CursorData data, int position, int count);
+        public void onRowsChanged(CursorData data, int position, int count);
+    }
+
 }
@@ -0,0 +1,363 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+package ds.framework.v4.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+
+/**
+ * a copy of all rows of a cursor in arrays - reading it needs no CursorWindow refills and no jni calls<br/>
+ * each column keeps the type of its values and only the arrays those types need (long[], double[], string indexes)<br/>
+ * strings are interned into one table so a repeated value is stored once<br/>
+ * !note: everything is copied at once - use for results which fit in memory
+ */
+public class CursorSnapshot extends AbstractCursor {
+
+	final private String[] mColumnNames;
+	final private int mCount;
+	final private Column[] mColumns;
+	final private String[] mStrings;
+
+	/**
+	 * copy all rows of cursor and close it
+	 *
+	 * @param cursor
+	 * @return
+	 */
+	public static CursorSnapshot create(Cursor cursor) {
+		try {
+			return new CursorSnapshot(cursor);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 *
+	 * @param cursor
+	 */
+	private CursorSnapshot(Cursor cursor) {
+		mColumnNames = cursor.getColumnNames();
+		mCount = cursor.getCount();
+
+		final int columnCount = mColumnNames.length;
+		mColumns = new Column[columnCount];
+		for(int i = 0; i < columnCount; ++i) {
+			mColumns[i] = new Column(mCount);
+		}
+
+		final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+		final ArrayList<String> strings = new ArrayList<String>();
+		for(int row = 0; row < mCount && cursor.moveToPosition(row); ++row) {
+			for(int i = 0; i < columnCount; ++i) {
+				mColumns[i].read(cursor, i, row, indexes, strings);
+			}
+		}
+		mStrings = strings.toArray(new String[strings.size()]);
+	}
+
+	/**
+	 *
+	 * @param other
+	 */
+	private CursorSnapshot(CursorSnapshot other) {
+		mColumnNames = other.mColumnNames;
+		mCount = other.mCount;
+		mColumns = other.mColumns;
+		mStrings = other.mStrings;
+	}
+
+	/**
+	 * a new cursor over the same rows - with its own position and close<br/>
+	 * nothing is copied
+	 *
+	 * @return
+	 */
+	public CursorSnapshot copy() {
+		return new CursorSnapshot(this);
+	}
+
+	/**
+	 * estimated memory used by the rows
+	 *
+	 * @return
+	 */
+	public long getByteSize() {
+		long bytes = 0;
+		for(Column column : mColumns) {
+			bytes += column.getByteSize();
+		}
+		for(String string : mStrings) {
+
+			// chars + object and array headers
+			bytes += string.length() * 2 + 40;
+		}
+		return bytes;
+	}
+
+	/**
+	 * number of distinct strings stored
+	 *
+	 * @return
+	 */
+	public int getStringCount() {
+		return mStrings.length;
+	}
+
+	@Override
+	public int getCount() {
+		return mCount;
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return mColumnNames;
+	}
+
+	@Override
+	public int getType(int column) {
+		checkPosition();
+		return mColumns[column].types[mPos];
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		checkPosition();
+		return mColumns[column].types[mPos] == FIELD_TYPE_NULL;
+	}
+
+	@Override
+	public String getString(int column) {
+		checkPosition();
+		final Column c = mColumns[column];
+		final int row = mPos;
+		switch(c.types[row]) {
+			case FIELD_TYPE_STRING:
+				return mStrings[c.strings[row]];
+
+			case FIELD_TYPE_INTEGER:
+				return Long.toString(c.longs[row]);
+
+			case FIELD_TYPE_FLOAT:
+				return Double.toString(c.doubles[row]);
+
+			case FIELD_TYPE_NULL:
+				return null;
+
+			default:
+				throw(new SQLiteException("unable to convert BLOB to string"));
+		}
+	}
+
+	@Override
+	public long getLong(int column) {
+		checkPosition();
+		final Column c = mColumns[column];
+		final int row = mPos;
+		switch(c.types[row]) {
+			case FIELD_TYPE_INTEGER:
+				return c.longs[row];
+
+			case FIELD_TYPE_FLOAT:
+				return (long) c.doubles[row];
+
+			case FIELD_TYPE_STRING:
+				return parseLong(mStrings[c.strings[row]]);
+
+			case FIELD_TYPE_NULL:
+				return 0;
+
+			default:
+				throw(new SQLiteException("unable to convert BLOB to long"));
+		}
+	}
+
+	@Override
+	public int getInt(int column) {
+		return (int) getLong(column);
+	}
+
+	@Override
+	public short getShort(int column) {
+		return (short) getLong(column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		checkPosition();
+		final Column c = mColumns[column];
+		final int row = mPos;
+		switch(c.types[row]) {
+			case FIELD_TYPE_FLOAT:
+				return c.doubles[row];
+
+			case FIELD_TYPE_INTEGER:
+				return c.longs[row];
+
+			case FIELD_TYPE_STRING:
+				return parseDouble(mStrings[c.strings[row]]);
+
+			case FIELD_TYPE_NULL:
+				return 0;
+
+			default:
+				throw(new SQLiteException("unable to convert BLOB to double"));
+		}
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return (float) getDouble(column);
+	}
+
+	@Override
+	public byte[] getBlob(int column) {
+		checkPosition();
+		final Column c = mColumns[column];
+		final int row = mPos;
+		switch(c.types[row]) {
+			case FIELD_TYPE_BLOB:
+				return c.blobs[row];
+
+			case FIELD_TYPE_STRING:
+				return mStrings[c.strings[row]].getBytes();
+
+			case FIELD_TYPE_NULL:
+				return null;
+
+			default:
+				throw(new SQLiteException("unable to convert number to BLOB"));
+		}
+	}
+
+	/**
+	 * leading number of a string as sqlite would read it - 0 if there is none
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException e) {
+			return (long) parseDouble(value);
+		}
+	}
+
+	/**
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static double parseDouble(String value) {
+		try {
+			return Double.parseDouble(value.trim());
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @class Column
+	 */
+	private static class Column {
+		final byte[] types;
+		long[] longs;
+		double[] doubles;
+		int[] strings;
+		byte[][] blobs;
+
+		Column(int count) {
+			types = new byte[count];
+		}
+
+		long getByteSize() {
+			long bytes = types.length;
+			if (longs != null) {
+				bytes += longs.length * 8;
+			}
+			if (doubles != null) {
+				bytes += doubles.length * 8;
+			}
+			if (strings != null) {
+				bytes += strings.length * 4;
+			}
+			if (blobs != null) {
+				for(byte[] blob : blobs) {
+					bytes += blob == null ? 4 : blob.length + 16;
+				}
+			}
+			return bytes;
+		}
+
+		/**
+		 *
+		 * @param cursor
+		 * @param column
+		 * @param row
+		 * @param indexes - index of each string in strings
+		 * @param strings
+		 */
+		void read(Cursor cursor, int column, int row, HashMap<String, Integer> indexes, ArrayList<String> strings) {
+			final int type = cursor.getType(column);
+			types[row] = (byte) type;
+
+			switch(type) {
+				case FIELD_TYPE_INTEGER:
+					if (longs == null) {
+						longs = new long[types.length];
+					}
+					longs[row] = cursor.getLong(column);
+					break;
+
+				case FIELD_TYPE_FLOAT:
+					if (doubles == null) {
+						doubles = new double[types.length];
+					}
+					doubles[row] = cursor.getDouble(column);
+					break;
+
+				case FIELD_TYPE_STRING:
+					if (this.strings == null) {
+						this.strings = new int[types.length];
+					}
+					final String value = cursor.getString(column);
+					Integer index = indexes.get(value);
+					if (index == null) {
+						index = strings.size();
+						strings.add(value);
+						indexes.put(value, index);
+					}
+					this.strings[row] = index;
+					break;
+
+				case FIELD_TYPE_BLOB:
+					if (blobs == null) {
+						blobs = new byte[types.length][];
+					}
+					blobs[row] = cursor.getBlob(column);
+					break;
+
+				default:
+					break;
+			}
+		}
+	}
+}
@@ -193,6 +193,9 @@ public class DbEntryFilter implements Serializable {
 		}
 		query.orderBy("filter." + mOrderColumn);
 		query.distinct(true);
+		
+		// loaded each time a fragment using it is (re)created - see Db.getQueryCache()
+		query.setCached(true);
 		return query;
 	}
 	
@@ -20,11 +20,16 @@ import android.database.Cursor;
 import java.io.IOException;
 
 import ds.framework.v4.common.Debug;
+import ds.framework.v4.db.Condition;
+import ds.framework.v4.db.DbChanges;
 import ds.framework.v4.db.TableQuery;
 import ds.framework.v4.widget.AbsLoadingRecyclerViewAdapter;
 
 abstract public class LoadingCursorData extends CursorData implements AbsLoadingRecyclerViewAdapter.LoadingRecyclerViewAdapterData{
 
+    // alias of the key column added to the loader query when paging by key
+    private static final String PAGE_KEY = "ds_page_key";
+
     private boolean mWayForward = true;
 
     private int mOffset = 0;
@@ -33,6 +38,9 @@ abstract public class LoadingCursorData extends CursorData implements AbsLoading
     protected int mInMemoryLimit = 150; // change only in constructor
     protected int mPageLimit = 25;      // change only in constructor
 
+    // page by the default order by column instead of offset - see getLoaderQuery
+    protected boolean mKeysetPaging = false;    // change only in constructor
+
     private boolean mLoadingFinished = false;
     private int mLoadingRowCount = 1;
 
@@ -42,6 +50,10 @@ abstract public class LoadingCursorData extends CursorData implements AbsLoading
 
     private boolean mReachedDBEnd;
 
+    // keyset paging - key of the first row in memory (null: from the start) and keys of the rows in memory
+    private Long mWindowStart;
+    private long[] mWindowKeys = new long[0];
+
     /**
      *
      * @return
@@ -115,9 +127,77 @@ abstract public class LoadingCursorData extends CursorData implements AbsLoading
         refreshQuery();
     }
 
+    /**
+     * !note: when paging by key (mKeysetPaging) the rows in memory are selected by their default order by
+     * column instead of an offset - so loading a page costs the same at any depth<br/>
+     * this needs the default order by column to be an integer unique in the query's rows and the query
+     * to be ordered by it (first) - ascending or descending, the direction is kept
+     * (getLoaderQuery(offset, limit) is called with 0 offset and its order by is replaced by the key only)
+     *
+     * @return
+     */
     @Override
     protected TableQuery getLoaderQuery() {
-        return getLoaderQuery(mOffset, mInMemoryLimit);
+        if (!mKeysetPaging) {
+            return getLoaderQuery(mOffset, mInMemoryLimit);
+        }
+
+        final TableQuery query = getLoaderQuery(0, mInMemoryLimit);
+        final String key = query.defaultOrderBy();
+        final boolean asc = !isKeyDescending(query, key);
+
+        // getSelect() first as it may fill an empty select
+        query.getSelect();
+        query.addSelect(key + " AS " + PAGE_KEY);
+        if (mWindowStart != null) {
+            query.filter(new Condition(key, asc ? Condition.EQUALS_OR_HIGHER : Condition.EQUALS_OR_LOWER,
+                    (long) mWindowStart));
+        }
+        query.orderBy(key, asc, "BINARY", false);
+        return query;
+    }
+
+    /**
+     * loader query selecting only the key column, ordered by it
+     *
+     * @param from - only rows after (forward) / before (backward) this key in the list - null for all
+     * @param forward - in the order of the list or the opposite
+     * @param limit
+     * @return
+     */
+    private TableQuery getKeyQuery(Long from, boolean forward, int limit) {
+        final TableQuery query = getLoaderQuery(0, limit);
+        final String key = query.defaultOrderBy();
+        final boolean asc = forward != isKeyDescending(query, key);
+
+        query.select(key + " AS " + PAGE_KEY);
+        if (from != null) {
+            query.filter(new Condition(key, asc ? Condition.HIGHER : Condition.LOWER, (long) from));
+        }
+        query.orderBy(key, asc, "BINARY", false);
+        return query;
+    }
+
+    /**
+     * direction of the list by key - from the order by of the query
+     *
+     * @param query
+     * @param key
+     * @return
+     * @throws IllegalStateException - if the query is not ordered by key first
+     */
+    private static boolean isKeyDescending(TableQuery query, String key) throws IllegalStateException {
+        final String orderBy = query.getOrderBy();
+        if (orderBy == null || orderBy.trim().length() == 0) {
+            return false;
+        }
+
+        final String[] parts = orderBy.split(",")[0].trim().split("\\s+");
+        if (!parts[0].equalsIgnoreCase(key)) {
+            throw(new IllegalStateException("keyset paging needs the loader query ordered by " + key +
+                    " first - not by " + orderBy));
+        }
+        return parts.length > 1 && "DESC".equalsIgnoreCase(parts[parts.length - 1]);
     }
 
     /**
@@ -130,10 +210,16 @@ abstract public class LoadingCursorData extends CursorData implements AbsLoading
         mCount = -1;
         mLoadingFinished = false;
         mReachedDBEnd = false;
+        mWindowStart = null;
+        mWindowKeys = new long[0];
     }
 
     @Override
     public Cursor loadDataInThread(Thread in) {
+        if (mKeysetPaging) {
+            return loadWindowInThread(in);
+        }
+
         int currentCount = 0;
         boolean needForeign = true;
 
@@ -205,14 +291,150 @@ abstract public class LoadingCursorData extends CursorData implements AbsLoading
         return super.loadDataInThread(in);
     }
 
+    /**
+     * loadDataInThread when paging by key<br/>
+     * the row count is only counted fully for the first load - after that it is kept up to date by counting
+     * the rows the foreign source added after the last key and corrected when the end of the rows is in memory
+     *
+     * @param in
+     * @return
+     */
+    private Cursor loadWindowInThread(Thread in) {
+        if (mCount == -1) {
+            final int count = getKeyQuery(null, true, mInMemoryLimit).count(true, false);
+            synchronized (this) {
+                mCount = count;
+            }
+        }
+
+        int currentCount;
+        boolean needForeign = true;
+
+        synchronized (this) {
+            if (!isLoading()) {
+
+                // interrupted
+                return null;
+            }
+
+            currentCount = mCount - mOffset;
+            if (!mWayForward) {
+                needForeign = false;
+            } else {
+                if (mWindowKeys.length >= mInMemoryLimit && mPageLimit > 0 && mPageLimit < mWindowKeys.length) {
+
+                    // going forward and the memory is full - the row at mPageLimit becomes the first
+                    mWindowStart = mWindowKeys[mPageLimit];
+                    mOffset += mPageLimit;
+                }
+                if (mPageLimit != -1 && currentCount >= mCurrentPosition + mPageLimit) {
+
+                    // still have enough data in db
+                    needForeign = false;
+                } else if (mLoadingFinished) {
+
+                    // no more on server - and reached the end of our data
+                    mReachedDBEnd = true;
+                    needForeign = false;
+                }
+            }
+        }
+
+        if (!mWayForward && mWindowStart != null) {
+
+            // going backwards - the new first row is mPageLimit rows before the current one
+            final Cursor before = getKeyQuery(mWindowStart, false, Math.max(1, mPageLimit)).load();
+            try {
+                final int found = before.getCount();
+                if (found > 0 && before.moveToPosition(found - 1)) {
+                    final long start = before.getLong(0);
+                    synchronized (this) {
+                        mWindowStart = start;
+                        mOffset = found < mPageLimit ? 0 : Math.max(0, mOffset - found);
+
+                        // need to load again next time when moving forward
+                        mReachedDBEnd = false;
+                    }
+                }
+            } finally {
+                before.close();
+            }
+        }
+
+        if (needForeign) {
+            final Long lastKey = getKeyQuery(null, false, 1).loadFirstLong();
+
+            boolean loadingFinished = false;
+            try {
+                loadingFinished = loadFromForeignSource(currentCount, mOffset, mPageLimit);
+            } catch(Throwable e) {
+                Debug.logException(e);
+                return null;
+            }
+
+            // only count the new rows
+            final int added = getKeyQuery(lastKey, true, mInMemoryLimit).count(true, false);
+
+            synchronized (this) {
+                if (!isLoading()) {
+
+                    // interrupted
+                    return null;
+                }
+
+                mLoadingFinished = loadingFinished;
+                mCount = (lastKey == null ? 0 : mCount) + added;
+            }
+        }
+
+        mFirstLoad = false;
+
+        final Cursor cursor = getLoaderQuery().load();
+        if (cursor == null) {
+            return null;
+        }
+
+        final long[] keys = new long[cursor.getCount()];
+        final int keyIndex = cursor.getColumnIndex(PAGE_KEY);
+        for(int i = 0; i < keys.length && cursor.moveToPosition(i); ++i) {
+            keys[i] = cursor.getLong(keyIndex);
+        }
+
+        // is there anything after the rows in memory?
+        final boolean more = keys.length == 0 ? false :
+                getKeyQuery(keys[keys.length - 1], true, 1).loadFirstLong() != null;
+
+        synchronized (this) {
+            mWindowKeys = keys;
+            if (!more) {
+
+                // the end is in memory - the count is exact here
+                mCount = mOffset + keys.length;
+            }
+        }
+        return cursor;
+    }
+
     @Override
     protected void onDataLoaded(Object result, OnDataLoadListener listener) {
-        mCount = getLoaderQuery().count(true, false);
+        if (!mKeysetPaging) {
+            mCount = getLoaderQuery().count(true, false);
+        }
         mLoadingRowCount = mLoadingFinished ? 0 : 1;
 
         super.onDataLoaded(result, listener);
     }
 
+    /**
+     * !note: rows are paged - they can not be reloaded in place, use reset() to reload after changes
+     *
+     * @param changes
+     */
+    @Override
+    protected void onTablesChanged(DbChanges changes) {
+        ;
+    }
+
     /**
      * load from foreign source (backend ... )
      * !note: handle errors inside, existing data will still load
@@ -31,6 +31,9 @@ public class Condition {
 	public static final int BETWEEN = 10;
 
     public static final int IS = 11;
+
+	// sqlite's default limit of bound parameters in one statement
+	public static final int MAX_BOUND_VALUES = 999;
 	
 	String mField;
 	int mRelation;
@@ -173,6 +176,7 @@ public class Condition {
 	}
 
     /**
+     * !note: the values are written into the sql - for long lists use createBoundIn and bind them
      *
      * @param field
      * @param values
@@ -215,12 +219,153 @@ public class Condition {
 		mArrayValue = values;
 	}
 
+    /**
+     * field IN (?,?,...) - to bind the values instead of writing them into the sql<br/>
+     * !note: keep count at or below MAX_BOUND_VALUES
+     *
+     * @param field
+     * @param count
+     * @return
+     */
+	public static String createBoundIn(String field, int count) {
+		final StringBuilder sb = new StringBuilder(DbQuery.quoteName(field)).append(" IN (");
+		for(int i = 0; i < count; ++i) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('?');
+		}
+		return sb.append(')').toString();
+	}
+
     /**
      *
      * @return
      */
 	@Override
 	public String toString() {
+		String ret = getFieldAndRelation();
+		if (mStrValue != null) {
+			ret += DbQuery.quoteNameOrValue(mStrValue);
+		} else if (mLongValue != null) {
+			ret += mLongValue;
+		} else if (mFloatValue != null) {
+			ret += mFloatValue;
+		} else if (mIntArrayValue != null) {
+			ret += DbQuery.quoteValue(mIntArrayValue);
+		} else if (mArrayValue != null) {
+			ret += DbQuery.quoteValue(mArrayValue);
+		} else if (mStrValue == null) {
+			ret += "NULL";
+		}
+		
+		return ret;
+	}
+
+    /**
+     * append everything but the values (field, relation, names, number of values) to shape and
+     * the values to args - see ConditionTree.compile
+     *
+     * @param shape
+     * @param args
+     */
+	void compile(StringBuilder shape, ArrayList<Object> args) {
+		shape.append(mField).append('\u0001');
+		if (mStringRelation != null) {
+			shape.append(mStringRelation);
+		} else {
+			shape.append(mRelation);
+		}
+		shape.append('\u0001');
+		
+		if (mStrValue != null) {
+			final String value = mStrValue.trim();
+			if (isValue(value)) {
+				shape.append('?');
+				args.add(value.length() == 2 ? "" : value.substring(1, value.length() - 1).trim());
+			} else {
+				
+				// a column - stays in the sql
+				shape.append(value);
+			}
+		} else if (mLongValue != null) {
+			shape.append('?');
+			args.add(mLongValue);
+		} else if (mFloatValue != null) {
+			shape.append('?');
+			
+			// as it would be written into the sql
+			args.add(Double.valueOf(mFloatValue.toString()));
+		} else if (mIntArrayValue != null) {
+			shape.append('[').append(mIntArrayValue.length);
+			for(int value : mIntArrayValue) {
+				args.add((long) value);
+			}
+		} else if (mArrayValue != null) {
+			shape.append('[').append(mArrayValue.length);
+			for(Object value : mArrayValue) {
+				args.add(value.toString().trim());
+			}
+		} else {
+			shape.append("NULL");
+		}
+		shape.append('\u0002');
+	}
+
+    /**
+     * like toString() but with ? in place of the values added to args by compile()
+     *
+     * @return
+     */
+	String toTemplate() {
+		String ret = getFieldAndRelation();
+		if (mStrValue != null) {
+			final String value = mStrValue.trim();
+			ret += isValue(value) ? "?" : DbQuery.quoteName(value);
+		} else if (mLongValue != null || mFloatValue != null) {
+			ret += "?";
+		} else if (mIntArrayValue != null) {
+			ret += createPlaceholders(mIntArrayValue.length);
+		} else if (mArrayValue != null) {
+			ret += createPlaceholders(mArrayValue.length);
+		} else {
+			ret += "NULL";
+		}
+		
+		return ret;
+	}
+
+    /**
+     * string value is a value (quoted) or a column name
+     *
+     * @param value - trimmed
+     * @return
+     */
+	private static boolean isValue(String value) {
+		return value.charAt(0) == '\'';
+	}
+
+    /**
+     *
+     * @param count
+     * @return
+     */
+	private static String createPlaceholders(int count) {
+		final StringBuilder sb = new StringBuilder("(");
+		for(int i = 0; i < count; ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append('?');
+		}
+		return sb.append(')').toString();
+	}
+
+    /**
+     *
+     * @return
+     */
+	private String getFieldAndRelation() {
 		String ret = DbQuery.quoteName(mField);
 		if (mStringRelation != null) {
 			ret += " " + mStringRelation + " ";
@@ -254,20 +399,6 @@ public class Condition {
 				ret += " = ";
 				break;
 		}
-		if (mStrValue != null) {
-			ret += DbQuery.quoteNameOrValue(mStrValue);
-		} else if (mLongValue != null) {
-			ret += mLongValue;
-		} else if (mFloatValue != null) {
-			ret += mFloatValue;
-		} else if (mIntArrayValue != null) {
-			ret += DbQuery.quoteValue(mIntArrayValue);
-		} else if (mArrayValue != null) {
-			ret += DbQuery.quoteValue(mArrayValue);
-		} else if (mStrValue == null) {
-			ret += "NULL";
-		}
-		
 		return ret;
 	}
 }
@@ -18,6 +18,8 @@ package ds.framework.v4.db;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class ConditionTree {
 	
@@ -26,6 +28,21 @@ public class ConditionTree {
 	public static final int OR = 2;
 	public static final int XOR = 3;
 	
+	private static final int TEMPLATE_CACHE_SIZE = 64;
+	
+	private static int sTemplateHits;
+	private static int sTemplateMisses;
+	
+	// compiled sql by shape (least recently used first) - see compile
+	private static final LinkedHashMap<String, String> sTemplates = 
+			new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > TEMPLATE_CACHE_SIZE;
+		}
+	};
+	
 	int mRelation = RELATION_UNKNOWN;
 	public final ArrayList<ConditionTree> mChildren = new ArrayList<ConditionTree>();
 	public Condition mCondition;
@@ -115,6 +132,101 @@ public class ConditionTree {
 		return mChildren.size() == 0 && mCondition == null;
 	}
 	
+	/**
+	 * sql with ? in place of the values - the values are added to args in the order of the ?s<br/>
+	 * trees of the same shape (same fields, relations, column names and number of values) give the same sql
+	 * so sqlite can reuse its prepared statement - the sql is cached by shape so only the values need to be collected
+	 * 
+	 * @param args
+	 * @return
+	 */
+	public String compile(ArrayList<Object> args) {
+		final StringBuilder sb = new StringBuilder();
+		appendShape(sb, args);
+		final String shape = sb.toString();
+		
+		synchronized(sTemplates) {
+			final String template = sTemplates.get(shape);
+			if (template != null) {
+				++sTemplateHits;
+				return template;
+			}
+			++sTemplateMisses;
+		}
+		
+		final String template = toTemplate();
+		synchronized(sTemplates) {
+			sTemplates.put(shape, template);
+		}
+		return template;
+	}
+	
+	public static int getTemplateCacheHitCount() {
+		synchronized(sTemplates) {
+			return sTemplateHits;
+		}
+	}
+	
+	public static int getTemplateCacheMissCount() {
+		synchronized(sTemplates) {
+			return sTemplateMisses;
+		}
+	}
+	
+	/**
+	 * 
+	 * @param shape
+	 * @param args
+	 */
+	private void appendShape(StringBuilder shape, ArrayList<Object> args) {
+		if (mCondition != null) {
+			mCondition.compile(shape, args);
+			return;
+		}
+		shape.append('(').append(mRelation);
+		for(ConditionTree tree: mChildren) {
+			tree.appendShape(shape, args);
+		}
+		shape.append(')');
+	}
+	
+	/**
+	 * like toString() but with ? in place of the values
+	 * 
+	 * @return
+	 */
+	private String toTemplate() {
+		if (mCondition != null) {
+			return mCondition.toTemplate();
+		}
+		final StringBuilder sb = new StringBuilder();
+		for(ConditionTree tree: mChildren) {
+			if (sb.length() > 0) {
+				sb.append(getRelationString());
+			}
+			sb.append('(').append(tree.toTemplate()).append(')');
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * 
+	 * @return
+	 */
+	private String getRelationString() {
+		switch(mRelation) {
+			case OR:
+				return " OR ";
+				
+			case XOR:
+				return " XOR ";
+		
+			case AND:
+			default:
+				return " AND ";
+		}
+	}
+	
 	@Override
 	public String toString() {
 		if (mCondition != null) {
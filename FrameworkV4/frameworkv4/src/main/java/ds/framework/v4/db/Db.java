@@ -15,9 +15,14 @@
 */
 package ds.framework.v4.db;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -25,10 +30,17 @@ import android.database.Cursor;
 import android.database.DatabaseUtils.InsertHelper;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import ds.framework.v4.common.Debug;
 
@@ -41,6 +53,58 @@ abstract public class Db {
 	private static SQLiteDatabase sDb;
 	private static int openCount;
 	
+	private static Boolean sSupportsUpsert;
+	
+	private static boolean sWriteAheadLogging;
+	private static boolean sWriteAheadLoggingActive;
+	
+	private static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+	
+	private static int sStatementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+	private static int sStatementCacheHits;
+	private static int sStatementCacheMisses;
+	private static int sStatementCacheEvictions;
+	
+	// statements given out by getCachedStatement / cacheStatement and not released yet - weak so a statement
+	// which is never released is just collected
+	private static final WeakHashMap<SQLiteStatement, Boolean> sStatementsInUse = new WeakHashMap<SQLiteStatement, Boolean>();
+	
+	// idle compiled statements by key (least recently used first) - see getCachedStatement
+	private static final LinkedHashMap<String, SQLiteStatement> sStatementCache = 
+			new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+			if (size() <= sStatementCacheSize) {
+				return false;
+			}
+			++sStatementCacheEvictions;
+			eldest.getValue().releaseReference();
+			return true;
+		}
+	};
+	
+	// reclaims free pages after deletes - see getVacuumScheduler
+	private static final VacuumScheduler sVacuumScheduler = new VacuumScheduler();
+	
+	// results of cached queries - see DbQuery.setCached
+	private static final QueryCache sQueryCache = new QueryCache();
+	
+	// notified on the main thread after commits - see addOnChangeListener
+	private static final ArrayList<WeakReference<DbChanges.OnChangeListener>> sChangeListeners = 
+			new ArrayList<WeakReference<DbChanges.OnChangeListener>>();
+	private static volatile boolean sHasChangeListeners;
+	private static Handler sMainHandler;
+	
+	// transaction nesting and the changes waiting for commit of the calling thread
+	private static final ThreadLocal<TransactionState> sTransactionState = new ThreadLocal<TransactionState>() {
+		
+		@Override
+		protected TransactionState initialValue() {
+			return new TransactionState();
+		}
+	};
+	
 	private static final HashMap<String, Table> sTables = new HashMap<String, Table>();
 
 	/**
@@ -82,7 +146,38 @@ abstract public class Db {
 				new MYSQLiteOpenHelper(context.getApplicationContext(), DATABASE_NAME + dbName, null, version);
 
 		openCount = 0; // not opened yet
-		return sDbHelper.getWritableDatabase();
+		
+		final SQLiteDatabase db = sDbHelper.getWritableDatabase();
+		sWriteAheadLoggingActive = sWriteAheadLogging && db.enableWriteAheadLogging();
+		if (sWriteAheadLogging && !sWriteAheadLoggingActive) {
+Debug.logD("Db", "write-ahead logging is not available");
+		}
+		return db;
+	}
+	
+	/**
+	 * use write-ahead logging<br/>
+	 * the database then keeps a pool of read connections - queries and counts run parallel with each other
+	 * and with a transaction open on another thread (ie. a long sync) - a thread inside a transaction still
+	 * reads through the writing connection to see its own changes<br/>
+	 * !note: takes effect when the database is (re)opened - call before the first open()
+	 * 
+	 * @param enabled
+	 */
+	public static void setWriteAheadLogging(boolean enabled) {
+		synchronized(Db.class) {
+			sWriteAheadLogging = enabled;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return
+	 */
+	public static boolean isWriteAheadLogging() {
+		synchronized(Db.class) {
+			return sWriteAheadLoggingActive;
+		}
 	}
 	
 	/**
@@ -104,6 +199,20 @@ abstract public class Db {
 		++openCount;
 	}
 
+	/**
+	 * increase open count only if the database is opened<br/>
+	 * !note: call close() when finished if this returned true
+	 * 
+	 * @return
+	 */
+	synchronized boolean retain() {
+		if (openCount == 0 || sDb == null || !sDb.isOpen()) {
+			return false;
+		}
+		++openCount;
+		return true;
+	}
+
 	/**
 	 *
 	 */
@@ -126,11 +235,14 @@ abstract public class Db {
 		
 		if (!sDb.isOpen()) {
 			openCount = 0;
+			sQueryCache.clear();
 			sDb = null;
 			return;
 		}
 		--openCount;
 		if (openCount == 0) {
+			clearStatementCache();
+			sQueryCache.clear();
 			sDbHelper.close();
 			sDb = null;
 		}
@@ -156,7 +268,9 @@ abstract public class Db {
 	}
 
 	/**
-	 * execute query 
+	 * execute query<br/>
+	 * values of where and having are bound so queries of the same shape share one prepared statement<br/>
+	 * results of cached queries are loaded from the query cache if they are there - see DbQuery.setCached
 	 * 
 	 * @param query
 	 * @return
@@ -164,9 +278,39 @@ abstract public class Db {
 	 */
 	public Cursor query(DbQuery query) throws SQLException {
 		try {
-			return sDb.query(query.isDistinct(), query.getTable(), query.getSelect(), 
-					query.getWhere(), null, query.getGroupBy(), 
-					query.getHaving(), query.getOrderBy(), query.getLimit());
+			final ArrayList<Object> args = new ArrayList<Object>();
+			final String where = query.compileWhere(args);
+			final String having = query.compileHaving(args);
+			
+			final List<String> tables = query.isCached() ? query.getTableNames() : null;
+			if (tables == null) {
+				return sDb.queryWithFactory(BindingCursorFactory.create(args), query.isDistinct(), 
+						query.getTable(), query.getSelect(), where, null, query.getGroupBy(), 
+						having, query.getOrderBy(), query.getLimit());
+			}
+			
+			final String key = createCacheKey(SQLiteQueryBuilder.buildQueryString(query.isDistinct(), 
+					query.getTable(), query.getSelect(), where, query.getGroupBy(), 
+					having, query.getOrderBy(), query.getLimit()), args);
+			final DbChanges uncommitted = sTransactionState.get().pending;
+			if (uncommitted != null && uncommitted.touches(tables)) {
+				
+				// written in this thread's transaction - the cache knows nothing of it till the end of the transaction
+				return sDb.queryWithFactory(BindingCursorFactory.create(args), query.isDistinct(), 
+						query.getTable(), query.getSelect(), where, null, query.getGroupBy(), 
+						having, query.getOrderBy(), query.getLimit());
+			}
+			
+			final Cursor cached = sQueryCache.get(key);
+			if (cached != null) {
+				return cached;
+			}
+			
+			final long[] generations = sQueryCache.getGenerations(tables);
+			return sQueryCache.put(key, tables, generations, 
+					sDb.queryWithFactory(BindingCursorFactory.create(args), query.isDistinct(), 
+							query.getTable(), query.getSelect(), where, null, query.getGroupBy(), 
+							having, query.getOrderBy(), query.getLimit()));
 		} catch (SQLException e) {
 			Debug.logException(e);
 			throw(e);
@@ -176,6 +320,30 @@ abstract public class Db {
 		}
 	}
 	
+	/**
+	 * sql and the values bound to it - values are prefixed by their type so 1 and '1' differ
+	 * 
+	 * @param sql
+	 * @param args
+	 * @return
+	 */
+	private static String createCacheKey(String sql, ArrayList<Object> args) {
+		final StringBuilder key = new StringBuilder(sql);
+		for(Object arg : args) {
+			key.append('\u0000');
+			if (arg == null) {
+				key.append('n');
+			} else if (arg instanceof String) {
+				key.append('s').append(arg);
+			} else if (arg instanceof Double) {
+				key.append('d').append(arg);
+			} else {
+				key.append('l').append(arg);
+			}
+		}
+		return key.toString();
+	}
+	
 	/**
 	 * count rows
 	 * 
@@ -198,22 +366,26 @@ abstract public class Db {
      */
 	public int count(DbQuery query, boolean withoutLimit, boolean withoutFilter) throws SQLException {
 		try {
+			final ArrayList<Object> args = new ArrayList<Object>();
 			String limit = null;
 			String where = null;
 			if (!withoutLimit) {
 				limit = query.getLimit();
 			}
 			if (!withoutFilter) {
-				where = query.getWhere();
+				where = query.compileWhere(args);
 			}
+			final String having = query.compileHaving(args);
 			
-			Cursor result = sDb.query(
+			Cursor result = sDb.queryWithFactory(
+					BindingCursorFactory.create(args),
+					false,
 					query.getTable(), 
 					new String[] { "COUNT(DISTINCT " + query.defaultOrderBy() + ")" }, 
 					where, 
 					null, 
 					query.getGroupBy(),
-					query.getHaving(),
+					having,
 					null,
 					limit);
 			result.moveToFirst();
@@ -237,7 +409,12 @@ abstract public class Db {
 	 */
 	public void insert(String table, ContentValues cv) {
 		try {
-			sDb.insertOrThrow(table, null, cv);
+			final long id = sDb.insertOrThrow(table, null, cv);
+			if (isRecording()) {
+				final DbChanges changes = startRecording();
+				changes.inserted(table, id);
+				stopRecording(changes);
+			}
 		} catch (SQLException e) {
 			Log.e("sql insert", Log.getStackTraceString(e));
 
@@ -257,7 +434,9 @@ abstract public class Db {
 	 */
 	public void update(String table, ContentValues cv, String where) {
 		try {
-			sDb.update(table, cv, where, null);
+			if (sDb.update(table, cv, where, null) > 0) {
+				recordChanged(table);
+			}
 		} catch (SQLException e) {
 			Log.e("sql update", Log.getStackTraceString(e));
 			throw(e);
@@ -278,6 +457,11 @@ abstract public class Db {
 		long id;
 		try {
 			id = sDb.insertWithOnConflict(table, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+			if (id != -1 && isRecording()) {
+				final DbChanges changes = startRecording();
+				changes.updated(table, id);
+				stopRecording(changes);
+			}
 		} catch (SQLException e) {
 			Log.e("sql update", Log.getStackTraceString(e));
 			throw(e);
@@ -292,7 +476,8 @@ abstract public class Db {
 	}
 	
 	/**
-	 * delete
+	 * delete<br/>
+	 * freed pages are reclaimed later in the background - see getVacuumScheduler
 	 * 
 	 * @param table
 	 * @param where
@@ -301,8 +486,72 @@ abstract public class Db {
 		int deleted;
 		try {
 			deleted = sDb.delete(table, where, null);
-			if (!sDb.inTransaction() && (where == null || Math.random() < 0.001 * deleted)) {
-				sDb.execSQL("VACUUM;");
+			if (deleted > 0) {
+				recordChanged(table);
+				sVacuumScheduler.onFreed(this);
+			}
+		} catch (SQLException e) {
+			Log.e("sql delete", Log.getStackTraceString(e));
+			throw(e);
+		} catch (Exception e) {
+			Log.e("sql delete - uncaught", Log.getStackTraceString(e));
+			throw(new SQLException(e.getMessage()));
+		}
+		return deleted;
+	}
+
+	/**
+	 * delete rows where column is one of values<br/>
+	 * values are bound in batches of Condition.MAX_BOUND_VALUES instead of being written into the sql so
+	 * the sql stays small and one cached statement serves every batch<br/>
+	 * !note: all batches run in one transaction
+	 * 
+	 * @param table
+	 * @param column
+	 * @param values
+	 * @return number of deleted rows
+	 */
+	public int deleteIn(String table, String column, int[] values) {
+		if (values == null || values.length == 0) {
+			return 0;
+		}
+		
+		final int batch = Math.min(values.length, Condition.MAX_BOUND_VALUES);
+		final String key = "delete_in:" + table + ":" + column + ":" + batch;
+		SQLiteStatement statement = getCachedStatement(key);
+		if (statement == null) {
+			statement = cacheStatement(key, 
+					"DELETE FROM " + Query.quoteName(table) + " WHERE " + Condition.createBoundIn(column, batch));
+		}
+		
+		int deleted = 0;
+		try {
+			beginTransaction();
+			try {
+				for(int at = 0; at < values.length; at += batch) {
+					for(int i = 0; i < batch; ++i) {
+						
+						// the last batch is padded with its last value so it can use the same statement
+						statement.bindLong(i + 1, values[Math.min(at + i, values.length - 1)]);
+					}
+					deleted += statement.executeUpdateDelete();
+				}
+				if (deleted > 0 && isRecording()) {
+					final DbChanges changes = startRecording();
+					
+					// only when every id was there - otherwise which ones were deleted is not known
+					if ("id".equals(column) && deleted == values.length) {
+						for(int value : values) {
+							changes.deleted(table, value);
+						}
+					} else {
+						changes.changed(table);
+					}
+					stopRecording(changes);
+				}
+				setTransactionSuccessful();
+			} finally {
+				endTransaction();
 			}
 		} catch (SQLException e) {
 			Log.e("sql delete", Log.getStackTraceString(e));
@@ -310,6 +559,12 @@ abstract public class Db {
 		} catch (Exception e) {
 			Log.e("sql delete - uncaught", Log.getStackTraceString(e));
 			throw(new SQLException(e.getMessage()));
+		} finally {
+			releaseCachedStatement(key, statement);
+		}
+		
+		if (deleted > 0) {
+			sVacuumScheduler.onFreed(this);
 		}
 		return deleted;
 	}
@@ -318,7 +573,7 @@ abstract public class Db {
 	 * truncate a table by dropping and recreating
 	 * 
 	 * @param table
-	 * @param vacuum - need to execute vacuum after delete?
+	 * @param vacuum - need to reclaim the freed pages (in the background) after delete?
 	 */
 	public void truncate(String table, boolean vacuum) {
 		truncate(sTables.get(table), vacuum);
@@ -328,7 +583,7 @@ abstract public class Db {
 	 * truncate a table by dropping and recreating
 	 * 
 	 * @param table
-	 * @param vacuum - need to execute vacuum after delete?
+	 * @param vacuum - need to reclaim the freed pages (in the background) after delete?
 	 */
 	public void truncate(Table table, boolean vacuum) {
 		if (vacuum) {
@@ -340,11 +595,13 @@ abstract public class Db {
 				Debug.logException(e);
 			}
 			table.create(sDb);
+			recordChanged(table.getName());
 
-			sDb.execSQL("VACUUM;");
+			sVacuumScheduler.onFreed(this);
 		} else {
 			try {
 				sDb.execSQL("DELETE FROM " + table.getName() + " WHERE 1");
+				recordChanged(table.getName());
 			} catch(Exception e) {
 				
 				// maybe the table does not exists
@@ -362,8 +619,9 @@ abstract public class Db {
 	public void dropTable(String table, boolean vacuum) {
 		try {
 			sDb.execSQL("DROP TABLE " + Query.quoteName(table) + ";");
+			recordChanged(table);
 			if (vacuum) {
-				vacuum();
+				sVacuumScheduler.onFreed(this);
 			}
 		} catch (SQLException e) {
 			Log.e("sql drop", Log.getStackTraceString(e));
@@ -394,16 +652,39 @@ abstract public class Db {
 		}
 		setTransactionSuccessful();
 		endTransaction();
-		vacuum();
+		sVacuumScheduler.onFreed(this);
 	}
 	
 	/**
-	 * vacuum database
+	 * vacuum database<br/>
+	 * also switches the database to auto_vacuum=INCREMENTAL so the vacuum scheduler can reclaim free pages
+	 * in small steps from then on<br/>
+	 * !note: rewrites the whole file on the calling thread - after deletes the vacuum scheduler reclaims
+	 * free pages in the background anyway (switching with a full vacuum the first time)
 	 */
 	public void vacuum() {
+		sDb.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
 		sDb.execSQL("VACUUM;");
 	}
 
+	/**
+	 * background reclaiming of free pages - change its threshold, step size and idle delay here
+	 * 
+	 * @return
+	 */
+	public static VacuumScheduler getVacuumScheduler() {
+		return sVacuumScheduler;
+	}
+
+	/**
+	 * results of cached queries - change its limits or clear it here
+	 * 
+	 * @return
+	 */
+	public static QueryCache getQueryCache() {
+		return sQueryCache;
+	}
+
 	/**
 	 * last inserted row id
 	 * 
@@ -419,24 +700,188 @@ abstract public class Db {
 		return sDb.rawQuery(query, null);
 	}
 	
+	/**
+	 * !note: the tables written are not known - the whole query cache is cleared
+	 * 
+	 * @param sql
+	 */
 	public void execSQL(String sql) {
 		sDb.execSQL(sql);
+		if (sQueryCache.isUsed()) {
+			sQueryCache.clear();
+		}
 	}
 	
 	synchronized public void beginTransaction() throws IllegalStateException {
 		sDb.beginTransaction();
+		sTransactionState.get().levels.add(false);
 	}
 	
 	synchronized public void setTransactionSuccessful() {
 		sDb.setTransactionSuccessful();
+		
+		final ArrayList<Boolean> levels = sTransactionState.get().levels;
+		if (!levels.isEmpty()) {
+			levels.set(levels.size() - 1, true);
+		}
 	}
 	
 	synchronized public void endTransaction() {
+		boolean committed = true;
 		try {
 			sDb.endTransaction();
 		} catch(Throwable e) {
+			committed = false;
 			Debug.logException(e);
 		}
+		
+		final TransactionState state = sTransactionState.get();
+		if (state.levels.isEmpty()) {
+			return;
+		}
+		
+		// an unsuccessful inner transaction rolls back the outer one too
+		if (!state.levels.remove(state.levels.size() - 1) || !committed) {
+			state.failed = true;
+		}
+		if (!state.levels.isEmpty()) {
+			return;
+		}
+		
+		final DbChanges changes = state.pending;
+		final boolean failed = state.failed;
+		state.pending = null;
+		state.failed = false;
+		if (changes == null) {
+			return;
+		}
+		
+		// once for all writes of the transaction - also results loaded on other connections while it was open
+		// are stale now
+		sQueryCache.invalidate(changes.getTables());
+		if (!failed) {
+			publishChanges(changes);
+		}
+	}
+	
+	/**
+	 * listen to the changes written through Db (insert, update, insertOrReplace, delete, deleteIn, truncate,
+	 * dropTable and JSONToDbHelper) - called on the main thread after they were committed<br/>
+	 * !note: listeners are weakly referenced - keep a reference to them
+	 * 
+	 * @param listener
+	 */
+	public static void addOnChangeListener(DbChanges.OnChangeListener listener) {
+		synchronized(sChangeListeners) {
+			removeOnChangeListener(listener);
+			sChangeListeners.add(new WeakReference<DbChanges.OnChangeListener>(listener));
+			sHasChangeListeners = true;
+		}
+	}
+	
+	/**
+	 * 
+	 * @param listener
+	 */
+	public static void removeOnChangeListener(DbChanges.OnChangeListener listener) {
+		synchronized(sChangeListeners) {
+			for(int i = sChangeListeners.size() - 1; i >= 0; --i) {
+				final DbChanges.OnChangeListener other = sChangeListeners.get(i).get();
+				if (other == null || other == listener) {
+					sChangeListeners.remove(i);
+				}
+			}
+			sHasChangeListeners = !sChangeListeners.isEmpty();
+		}
+	}
+	
+	/**
+	 * is anyone listening to the changes (or are there results in the query cache to invalidate)
+	 * 
+	 * @return
+	 */
+	static boolean isRecording() {
+		return sHasChangeListeners || sQueryCache.isUsed();
+	}
+	
+	/**
+	 * rows of table changed but which ones is not known
+	 * 
+	 * @param table
+	 */
+	static void recordChanged(String table) {
+		if (!isRecording()) {
+			return;
+		}
+		final DbChanges changes = startRecording();
+		changes.changed(table);
+		stopRecording(changes);
+	}
+	
+	/**
+	 * changes to record into - those of the calling thread's transaction or new ones if not in a transaction<br/>
+	 * !note: call stopRecording after recording
+	 * 
+	 * @return
+	 */
+	static DbChanges startRecording() {
+		final TransactionState state = sTransactionState.get();
+		
+		// the query cache only needs the tables - rows are recorded for the listeners
+		if (state.levels.isEmpty()) {
+			return new DbChanges(!sHasChangeListeners);
+		}
+		if (state.pending == null) {
+			state.pending = new DbChanges(!sHasChangeListeners);
+		}
+		return state.pending;
+	}
+	
+	/**
+	 * invalidate cached queries and publish the changes if not in a transaction - both are done when the
+	 * transaction ends otherwise
+	 * 
+	 * @param changes
+	 */
+	static void stopRecording(DbChanges changes) {
+		if (!sTransactionState.get().levels.isEmpty()) {
+			return;
+		}
+		sQueryCache.invalidate(changes.getTables());
+		publishChanges(changes);
+	}
+	
+	/**
+	 * 
+	 * @param changes
+	 */
+	private static void publishChanges(final DbChanges changes) {
+		if (changes.isEmpty() || !sHasChangeListeners) {
+			return;
+		}
+		synchronized(sChangeListeners) {
+			if (sMainHandler == null) {
+				sMainHandler = new Handler(Looper.getMainLooper());
+			}
+		}
+		sMainHandler.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				final ArrayList<DbChanges.OnChangeListener> listeners = new ArrayList<DbChanges.OnChangeListener>();
+				synchronized(sChangeListeners) {
+					for(WeakReference<DbChanges.OnChangeListener> reference : sChangeListeners) {
+						final DbChanges.OnChangeListener listener = reference.get();
+						if (listener != null) {
+							listeners.add(listener);
+						}
+					}
+				}
+				for(DbChanges.OnChangeListener listener : listeners) {
+					listener.onDbChanged(changes);
+				}
+			}
+		});
 	}
 	
 	/**
@@ -468,11 +913,7 @@ abstract public class Db {
 			endTransaction();
 		}
 
-		try {
-			vacuum();
-		} catch(SQLException e) {
-			throw(e);
-		}
+		sVacuumScheduler.onFreed(this);
 	}
 	
 	/**
@@ -494,6 +935,138 @@ abstract public class Db {
         return sDb.compileStatement(sql);
     }
 
+    /**
+     * take a compiled statement from the statement cache - it is the caller's till releaseCachedStatement<br/>
+     * key should tell the table, the kind of statement and the columns used so the sql does not need
+     * to be built when the statement is cached<br/>
+     * !note: bind args live on the statement - so it is given out to one user at a time, while it is in use
+     * an other user of the same key gets null and compiles its own with cacheStatement
+     *
+     * @param key
+     * @return null if not cached (or in use) - use cacheStatement then
+     */
+    public SQLiteStatement getCachedStatement(String key) {
+        synchronized(sStatementCache) {
+            final SQLiteStatement statement = sStatementCache.remove(key);
+            if (statement == null) {
+                ++sStatementCacheMisses;
+                return null;
+            }
+            ++sStatementCacheHits;
+            sStatementsInUse.put(statement, Boolean.TRUE);
+            return statement;
+        }
+    }
+
+    /**
+     * compile a statement which goes to the statement cache when released<br/>
+     * !note: call releaseCachedStatement when finished with it - a statement which is not released is not
+     * reused but nothing is kept of it either
+     *
+     * @param key
+     * @param sql
+     * @return
+     */
+    public SQLiteStatement cacheStatement(String key, String sql) {
+        final SQLiteStatement statement = sDb.compileStatement(sql);
+        synchronized(sStatementCache) {
+            sStatementsInUse.put(statement, Boolean.TRUE);
+        }
+        return statement;
+    }
+
+    /**
+     * give back a statement got with getCachedStatement / cacheStatement<br/>
+     * it is kept for the next user of key - or closed if there is one kept already or the cache was cleared
+     * since it was given out
+     *
+     * @param key
+     * @param statement
+     */
+    public void releaseCachedStatement(String key, SQLiteStatement statement) {
+        synchronized(sStatementCache) {
+            if (sStatementsInUse.remove(statement) != null && !sStatementCache.containsKey(key)) {
+                statement.clearBindings();
+                sStatementCache.put(key, statement);
+                return;
+            }
+        }
+        statement.releaseReference();
+    }
+
+    /**
+     * maximum number of cached statements
+     *
+     * @param size
+     */
+    public static void setStatementCacheSize(int size) {
+        synchronized(sStatementCache) {
+            sStatementCacheSize = Math.max(1, size);
+            while(sStatementCache.size() > sStatementCacheSize) {
+                final String eldest = sStatementCache.keySet().iterator().next();
+                sStatementCache.remove(eldest).releaseReference();
+                ++sStatementCacheEvictions;
+            }
+        }
+    }
+
+    /**
+     * close all cached statements - the ones in use are closed when released
+     */
+    public static void clearStatementCache() {
+        synchronized(sStatementCache) {
+            for(SQLiteStatement statement : sStatementCache.values()) {
+                statement.releaseReference();
+            }
+            sStatementCache.clear();
+            sStatementsInUse.clear();
+        }
+    }
+
+    public static int getStatementCacheHitCount() {
+        synchronized(sStatementCache) {
+            return sStatementCacheHits;
+        }
+    }
+
+    public static int getStatementCacheMissCount() {
+        synchronized(sStatementCache) {
+            return sStatementCacheMisses;
+        }
+    }
+
+    public static int getStatementCacheEvictionCount() {
+        synchronized(sStatementCache) {
+            return sStatementCacheEvictions;
+        }
+    }
+
+    /**
+     * can INSERT ... ON CONFLICT DO UPDATE be used (sqlite 3.24.0 or newer)
+     *
+     * @return
+     */
+    public boolean supportsUpsert() {
+        if (sSupportsUpsert == null) {
+            boolean supports = false;
+            try {
+                final SQLiteStatement statement = sDb.compileStatement("SELECT sqlite_version()");
+                try {
+                    final String[] version = statement.simpleQueryForString().split("\\.");
+                    final int major = Integer.parseInt(version[0]);
+                    final int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+                    supports = major > 3 || (major == 3 && minor >= 24);
+                } finally {
+                    statement.close();
+                }
+            } catch(Throwable e) {
+                Debug.logException(e);
+            }
+            sSupportsUpsert = supports;
+        }
+        return sSupportsUpsert;
+    }
+
     /**
      *
      * @return
@@ -522,6 +1095,68 @@ abstract public class Db {
 		;
 	}
 	
+	/**
+	 * @class TransactionState
+	 */
+	private static class TransactionState {
+		
+		// for each nesting level - was it set successful
+		final ArrayList<Boolean> levels = new ArrayList<Boolean>();
+		boolean failed;
+		DbChanges pending;
+	}
+	
+	/**
+	 * @class BindingCursorFactory
+	 * 
+	 * binds typed values to a query - selectionArgs are always bound as strings which would change
+	 * comparisons with expressions without column affinity (ie. COUNT(*) > '5')
+	 */
+	private static class BindingCursorFactory implements CursorFactory {
+		
+		final private ArrayList<Object> mArgs;
+		
+		private BindingCursorFactory(ArrayList<Object> args) {
+			mArgs = args;
+		}
+		
+		/**
+		 * 
+		 * @param args
+		 * @return null if there is nothing to bind
+		 */
+		static BindingCursorFactory create(ArrayList<Object> args) {
+			return args.isEmpty() ? null : new BindingCursorFactory(args);
+		}
+
+		@Override
+		public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+			final int size = mArgs.size();
+			for(int i = 0; i < size; ++i) {
+				bind(query, i + 1, mArgs.get(i));
+			}
+			return new SQLiteCursor(driver, editTable, query);
+		}
+		
+		/**
+		 * 
+		 * @param program
+		 * @param index
+		 * @param value
+		 */
+		private static void bind(SQLiteProgram program, int index, Object value) {
+			if (value == null) {
+				program.bindNull(index);
+			} else if (value instanceof Long) {
+				program.bindLong(index, (Long) value);
+			} else if (value instanceof Double) {
+				program.bindDouble(index, (Double) value);
+			} else {
+				program.bindString(index, value.toString());
+			}
+		}
+	}
+	
 	class MYSQLiteOpenHelper extends SQLiteOpenHelper {
 
 		public MYSQLiteOpenHelper(Context context, String name, CursorFactory factory, int version) {
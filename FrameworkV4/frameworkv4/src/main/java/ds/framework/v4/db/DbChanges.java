@@ -0,0 +1,216 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+package ds.framework.v4.db;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * rows written through Db in one committed transaction (or in one write outside of transactions) by table<br/>
+ * when the rows of a write are not known (ie. update / delete with a where clause) the table is marked as
+ * changed as a whole - see TableChanges.isUnknown()
+ */
+public class DbChanges {
+
+	final private HashMap<String, TableChanges> mTables = new HashMap<String, TableChanges>();
+
+	// only the tables are needed (nobody listens) - rows are not kept, tables are marked as changed as a whole
+	final private boolean mTablesOnly;
+
+	public DbChanges() {
+		this(false);
+	}
+
+	DbChanges(boolean tablesOnly) {
+		mTablesOnly = tablesOnly;
+	}
+
+	/**
+	 *
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return mTables.isEmpty();
+	}
+
+	/**
+	 * names of the changed tables
+	 *
+	 * @return
+	 */
+	public Set<String> getTables() {
+		return mTables.keySet();
+	}
+
+	/**
+	 *
+	 * @param table
+	 * @return null if the table did not change
+	 */
+	public TableChanges get(String table) {
+		return mTables.get(table);
+	}
+
+	/**
+	 * did any of the tables change
+	 *
+	 * @param tables
+	 * @return
+	 */
+	public boolean touches(Collection<String> tables) {
+		for(String table : tables) {
+			if (mTables.containsKey(table)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * add the changes of other to these
+	 *
+	 * @param other
+	 */
+	public void addAll(DbChanges other) {
+		for(String table : other.mTables.keySet()) {
+			final TableChanges from = other.mTables.get(table);
+			final TableChanges to = getOrCreate(table);
+			to.mInserted.addAll(from.mInserted);
+			to.mUpdated.addAll(from.mUpdated);
+			to.mDeleted.addAll(from.mDeleted);
+			to.mUnknown |= from.mUnknown;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DbChanges" + mTables;
+	}
+
+	void inserted(String table, long id) {
+		if (mTablesOnly) {
+			changed(table);
+			return;
+		}
+		getOrCreate(table).mInserted.add(id);
+	}
+
+	void updated(String table, long id) {
+		if (mTablesOnly) {
+			changed(table);
+			return;
+		}
+		getOrCreate(table).mUpdated.add(id);
+	}
+
+	void deleted(String table, long id) {
+		if (mTablesOnly) {
+			changed(table);
+			return;
+		}
+		getOrCreate(table).mDeleted.add(id);
+	}
+
+	/**
+	 * rows of table changed but which ones is not known
+	 *
+	 * @param table
+	 */
+	void changed(String table) {
+		getOrCreate(table).mUnknown = true;
+	}
+
+	/**
+	 *
+	 * @param table
+	 * @return
+	 */
+	private TableChanges getOrCreate(String table) {
+		TableChanges changes = mTables.get(table);
+		if (changes == null) {
+			changes = new TableChanges();
+			mTables.put(table, changes);
+		}
+		return changes;
+	}
+
+	/**
+	 * @class TableChanges
+	 */
+	public static class TableChanges {
+		final private HashSet<Long> mInserted = new HashSet<Long>();
+		final private HashSet<Long> mUpdated = new HashSet<Long>();
+		final private HashSet<Long> mDeleted = new HashSet<Long>();
+		private boolean mUnknown;
+
+		public Set<Long> getInserted() {
+			return mInserted;
+		}
+
+		/**
+		 * !note: rows written with insertOrReplace are here too - even if they were new
+		 *
+		 * @return
+		 */
+		public Set<Long> getUpdated() {
+			return mUpdated;
+		}
+
+		public Set<Long> getDeleted() {
+			return mDeleted;
+		}
+
+		/**
+		 * rows were changed which are not in the sets (any row could have changed)
+		 *
+		 * @return
+		 */
+		public boolean isUnknown() {
+			return mUnknown;
+		}
+
+		/**
+		 * could the row with id have changed (or be new)
+		 *
+		 * @param id
+		 * @return
+		 */
+		public boolean isChanged(long id) {
+			return mUnknown || mInserted.contains(id) || mUpdated.contains(id);
+		}
+
+		@Override
+		public String toString() {
+			return "[inserted=" + mInserted + ",updated=" + mUpdated + ",deleted=" + mDeleted +
+					(mUnknown ? ",unknown" : "") + "]";
+		}
+	}
+
+	/**
+	 * @interface OnChangeListener
+	 */
+	public interface OnChangeListener {
+
+		/**
+		 * called on the main thread after the changes were committed
+		 *
+		 * @param changes
+		 */
+		public void onDbChanged(DbChanges changes);
+	}
+}
@@ -17,6 +17,7 @@
 package ds.framework.v4.db;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -28,6 +29,9 @@ public class DbQuery extends Query {
 	private final Db mDb;
 	
 	protected String mDefaultOrderBy;
+	
+	// keep the result of load() in the query cache - see setCached
+	private boolean mCached;
 
 	public DbQuery(Db db) {
 		mDb = db;
@@ -41,6 +45,34 @@ public class DbQuery extends Query {
 	public Cursor load() throws NullPointerException, SQLException {
 		return mDb.query(this);
 	}
+	
+	/**
+	 * keep the result of load() in Db's query cache and load it from there while none of the tables of the query
+	 * is written through Db<br/>
+	 * !note: the whole result is copied into memory - use for small results loaded often (lookups, filter lists)<br/>
+	 * !note: only queries knowing their tables are cached - see getTableNames
+	 * 
+	 * @see QueryCache
+	 * 
+	 * @param cached
+	 */
+	public void setCached(boolean cached) {
+		mCached = cached;
+	}
+	
+	public boolean isCached() {
+		return mCached;
+	}
+	
+	/**
+	 * names of all the tables the query reads - to invalidate its cached result when they are written<br/>
+	 * null if not known
+	 * 
+	 * @return
+	 */
+	public List<String> getTableNames() {
+		return null;
+	}
 
 	/**
 	 * execute a count query
@@ -145,6 +177,20 @@ public class DbQuery extends Query {
 		return mWhere.toString();
 	}
 	
+	/**
+	 * where with ? in place of the values - the values are added to args<br/>
+	 * see ConditionTree.compile
+	 * 
+	 * @param args
+	 * @return
+	 */
+	public String compileWhere(ArrayList<Object> args) {
+		if (mWhere == null) {
+			return null;
+		}
+		return mWhere.compile(args);
+	}
+	
 	public String getGroupBy() {
 		return mGroupBy;
 	}
@@ -156,6 +202,20 @@ public class DbQuery extends Query {
 		return mHaving.toString();
 	}
 	
+	/**
+	 * having with ? in place of the values - the values are added to args<br/>
+	 * !note: compile where first - its values come first
+	 * 
+	 * @param args
+	 * @return
+	 */
+	public String compileHaving(ArrayList<Object> args) {
+		if (mHaving == null) {
+			return null;
+		}
+		return mHaving.compile(args);
+	}
+	
 	public String getOrderBy() {
 		return mOrderBy;
 	}
@@ -6,6 +6,7 @@ import org.json.JSONObject;
 import android.content.ContentValues;
 import android.database.DatabaseUtils.InsertHelper;
 import android.database.sqlite.SQLiteAbortException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteStatement;
@@ -21,10 +22,30 @@ public class JSONToDbHelper {
     public static final long NO_ID = -1;
     
     private Column[] mColumns;
+    private int[] mColumnIndexes;
     private int mColumnCount;
     private SQLiteStatement mInsertStatement;
     private SQLiteStatement mUpdateStatement;
 
+    // statement cache keys of the statements - to give them back
+    private String mInsertKey;
+    private String mUpdateKey;
+
+    private static final int STATEMENT_INSERT = 0;
+    private static final int STATEMENT_UPDATE = 1;
+    private static final int STATEMENT_UPSERT = 2;
+
+    private static final String LAST_ROW_ID_SQL = "SELECT last_insert_rowid()";
+
+    // mInsertStatement is an INSERT ... ON CONFLICT DO UPDATE
+    private boolean mUpsert;
+    private SQLiteStatement mLastRowIdStatement;
+
+    // for recording the changes - see Db.addOnChangeListener
+    private String mTableName;
+
+    private Db mDb;
+
     /**
      * currently only supporting insert or update
      * TODO: add type parameter to control if insert/update/replace
@@ -33,20 +54,32 @@ public class JSONToDbHelper {
      * @param row
      */
 	public void createStatement(Table table, JSONObject row, Db db) {
+		Column[] columns = table.getColumns();
+		boolean[] present = new boolean[columns.length];
+		for(int c = 0; c < columns.length; ++c) {
+			present[c] = row.has(columns[c].name);
+		}
+		createStatement(table, present, db);
+	}
+
+    /**
+     * create statement for the columns marked in 'present' (indexes of table.getColumns())<br/>
+     * statements are taken from the statement cache of the db - the sql is only built for new column sets
+     *
+     * @param table
+     * @param present
+     * @param db
+     */
+	void createStatement(Table table, boolean[] present, Db db) {
 // Debug.logD("JSONToDbHelper", "createStatement for table: " + table);
 		Column[] columns = table.getColumns();
+		mTableName = table.getName();
+		mDb = db;
 
 		mColumnCount = 0;
 
-        String columnNames = "";
-        String insertUniqueNames = "";
-        String insertQmarks = "";
-        String updateWhere = "";
-        String updateSet = "";
-        boolean hasUnique = false;
-
-		for(Column column : columns) {
-            if ((column.type & Table.JOINED_TABLE) > 0 || !row.has(column.name)) {
+		for(int c = 0; c < columns.length; ++c) {
+            if ((columns[c].type & Table.JOINED_TABLE) > 0 || !present[c]) {
                 continue;
             }
 
@@ -54,48 +87,160 @@ public class JSONToDbHelper {
         }
 
         mColumns = new Column[mColumnCount];
+        mColumnIndexes = new int[mColumnCount];
 
         int next = 0;
         int last = mColumnCount;
+        final char[] signature = new char[columns.length];
 
-        for(Column column : columns) {
-            if ((column.type & Table.JOINED_TABLE) > 0 || !row.has(column.name)) {
+        for(int c = 0; c < columns.length; ++c) {
+            final Column column = columns[c];
+            if ((column.type & Table.JOINED_TABLE) > 0 || !present[c]) {
+                signature[c] = '0';
                 continue;
             }
-
-            insertQmarks += ",?";
+            signature[c] = '1';
 
             if ((column.type & (Table.UNIQUE | Table.PRIMARY)) == 0) {
-                columnNames += "," + column.name;
-                updateSet += ", " + column.name + " = ? ";
+                mColumnIndexes[next] = c;
                 mColumns[next++] = column;
             } else {
-                hasUnique = true;
-                insertUniqueNames = ", " + column.name + insertUniqueNames;
-                updateWhere = ", " + column.name + " = ? " + updateWhere;
 
                 // update where columns go to the end for easier bind
                 mColumns[--last] = column;
+                mColumnIndexes[last] = c;
             }
 		}
 
-        if (columnNames.length() > 0) {
-            columnNames += insertUniqueNames;
+        final int uniqueCount = mColumnCount - next;
+        final String key = table.getName() + ":" + new String(signature);
+
+        releaseStatements();
+
+        // a conflict target must match one unique index - so only with one unique column
+        // and the insert part must not fail for a partial row which would only be an update
+        mUpsert = uniqueCount == 1 && db.supportsUpsert() && hasRequiredColumns(columns, present);
+        if (mUpsert) {
+            mInsertKey = STATEMENT_UPSERT + ":" + key;
+            mInsertStatement = getStatement(db, table, STATEMENT_UPSERT, key, next);
+            if (mLastRowIdStatement == null) {
+                mLastRowIdStatement = db.getCachedStatement(LAST_ROW_ID_SQL);
+                if (mLastRowIdStatement == null) {
+                    mLastRowIdStatement = db.cacheStatement(LAST_ROW_ID_SQL, LAST_ROW_ID_SQL);
+                }
+            }
         } else {
-            columnNames = insertUniqueNames;
+            mInsertKey = STATEMENT_INSERT + ":" + key;
+            mInsertStatement = getStatement(db, table, STATEMENT_INSERT, key, next);
         }
-        
-        mInsertStatement = db.getSQLiteStatement("INSERT OR ABORT INTO " + table.getName()
-                + " (" + columnNames.substring(1) + ") VALUES (" + insertQmarks.substring(1) + ")");
 
-        if (hasUnique) {
-            mUpdateStatement = db.getSQLiteStatement("UPDATE " + table.getName() + " SET " +
-                    updateSet.substring(1) + " WHERE " + updateWhere.substring(1));
-        } else {
-            mUpdateStatement = null;
+        // also for the upsert - used outside of transactions and when it fails on an other constraint
+        if (uniqueCount > 0 && next > 0) {
+            mUpdateKey = STATEMENT_UPDATE + ":" + key;
+            mUpdateStatement = getStatement(db, table, STATEMENT_UPDATE, key, next);
         }
 	}
 
+    /**
+     * are all NOT NULL columns present - there are no column defaults so an insert without one would fail
+     *
+     * @param columns
+     * @param present
+     * @return
+     */
+    private static boolean hasRequiredColumns(Column[] columns, boolean[] present) {
+        for(int c = 0; c < columns.length; ++c) {
+            if (!present[c] && (columns[c].type & (Table.NULL | Table.PRIMARY | Table.JOINED_MASK)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * get statement from the db's statement cache or build it - the helper has it for itself till it is released
+     *
+     * @param db
+     * @param table
+     * @param kind
+     * @param key
+     * @param uniqueStart - index of the first unique column in mColumns
+     * @return
+     */
+    private SQLiteStatement getStatement(Db db, Table table, int kind, String key, int uniqueStart) {
+        key = kind + ":" + key;
+        final SQLiteStatement statement = db.getCachedStatement(key);
+        if (statement != null) {
+            return statement;
+        }
+
+        String columnNames = "";
+        String insertQmarks = "";
+        String updateSet = "";
+        String upsertSet = "";
+        String updateWhere = "";
+
+        for(int i = 0; i < mColumnCount; ++i) {
+            final String name = mColumns[i].name;
+            columnNames += "," + name;
+            insertQmarks += ",?";
+            if (i < uniqueStart) {
+                updateSet += ", " + name + " = ? ";
+                upsertSet += ", " + name + " = excluded." + name;
+            } else {
+                updateWhere += " AND " + name + " = ?";
+            }
+        }
+
+        final String sql;
+        switch(kind) {
+            case STATEMENT_UPSERT:
+                sql = "INSERT INTO " + table.getName()
+                        + " (" + columnNames.substring(1) + ") VALUES (" + insertQmarks.substring(1) + ")"
+                        + " ON CONFLICT(" + mColumns[uniqueStart].name + ") DO "
+                        + (upsertSet.length() > 0 ? "UPDATE SET " + upsertSet.substring(1) : "NOTHING");
+                break;
+
+            case STATEMENT_UPDATE:
+                sql = "UPDATE " + table.getName() + " SET " +
+                        updateSet.substring(1) + " WHERE " + updateWhere.substring(5);
+                break;
+
+            default:
+                sql = "INSERT OR ABORT INTO " + table.getName()
+                        + " (" + columnNames.substring(1) + ") VALUES (" + insertQmarks.substring(1) + ")";
+                break;
+        }
+        return db.cacheStatement(key, sql);
+    }
+
+    /**
+     * give back statements to the db's statement cache<br/>
+     * !note: call when the helper is not needed anymore - a new createStatement is required after this<br/>
+     * statements of a helper which is not closed are not reused, they go away with the helper
+     */
+    public void close() {
+        releaseStatements();
+        if (mLastRowIdStatement != null) {
+            mDb.releaseCachedStatement(LAST_ROW_ID_SQL, mLastRowIdStatement);
+            mLastRowIdStatement = null;
+        }
+    }
+
+    /**
+     *
+     */
+    private void releaseStatements() {
+        if (mInsertStatement != null) {
+            mDb.releaseCachedStatement(mInsertKey, mInsertStatement);
+            mInsertStatement = null;
+        }
+        if (mUpdateStatement != null) {
+            mDb.releaseCachedStatement(mUpdateKey, mUpdateStatement);
+            mUpdateStatement = null;
+        }
+    }
+
     /**
      *
      * @param table
@@ -256,24 +401,150 @@ public class JSONToDbHelper {
 	}
 
     /**
-     * execute insert or update
+     * number of columns in the current statement
+     *
+     * @return
+     */
+    int getColumnCount() {
+        return mColumnCount;
+    }
+
+    /**
+     * index in table.getColumns() of the column bound at 'position' (0 based)
+     *
+     * @param position
+     * @return
+     */
+    int getColumnIndex(int position) {
+        return mColumnIndexes[position];
+    }
+
+    /**
+     * clear bindings before binding a new row with the bind* methods
+     */
+    void clearBindings() {
+        mInsertStatement.clearBindings();
+        if (mUpdateStatement != null) {
+            mUpdateStatement.clearBindings();
+        }
+    }
+
+    /**
+     *
+     * @param position - 0 based
+     */
+    void bindNull(int position) {
+        mInsertStatement.bindNull(position + 1);
+        if (mUpdateStatement != null) {
+            mUpdateStatement.bindNull(position + 1);
+        }
+    }
+
+    /**
+     *
+     * @param position - 0 based
+     * @param value
+     */
+    void bindLong(int position, long value) {
+        mInsertStatement.bindLong(position + 1, value);
+        if (mUpdateStatement != null) {
+            mUpdateStatement.bindLong(position + 1, value);
+        }
+    }
+
+    /**
+     *
+     * @param position - 0 based
+     * @param value
+     */
+    void bindDouble(int position, double value) {
+        mInsertStatement.bindDouble(position + 1, value);
+        if (mUpdateStatement != null) {
+            mUpdateStatement.bindDouble(position + 1, value);
+        }
+    }
+
+    /**
+     *
+     * @param position - 0 based
+     * @param value
+     */
+    void bindString(int position, String value) {
+        mInsertStatement.bindString(position + 1, value);
+        if (mUpdateStatement != null) {
+            mUpdateStatement.bindString(position + 1, value);
+        }
+    }
+
+    /**
+     * execute insert or update<br/>
+     * with a single unique / primary column, all NOT NULL columns present, sqlite 3.24+ and in a transaction
+     * this is one INSERT ... ON CONFLICT DO UPDATE<br/>
+     * otherwise the row is updated first and only inserted if there was nothing to update - no exception is
+     * thrown for rows which already exist
      * TODO: add type parameter to control if insert/update/replace
      *
-     * @return last inserted id for insert, 0 for update, ERROR (-1) for error
+     * @return last inserted id for insert, 0 for update, ERROR (-2) for error
      */
     public long execute() throws SQLiteException {
-        long ret = NO_ID;
-        try {
-            ret = mInsertStatement.executeInsert();
-        } catch (SQLiteException e) {
-            if (mUpdateStatement != null) {
-                ret = mUpdateStatement.executeUpdateDelete() == 0 ? ERROR : 0;
+        final long ret = executeInner();
+        if (ret != ERROR && ret != -1 && Db.isRecording()) {
+            final DbChanges changes = Db.startRecording();
+            if (ret == 0) {
+
+                // the updated row's id is not known - and an upsert's insert re-using the last rowid is
+                // reported as update too, so only the table is recorded
+                changes.changed(mTableName);
             } else {
-                throw e;
+
+                // a new rowid of this insert - the upsert probe runs on the insert's connection
+                changes.inserted(mTableName, ret);
             }
+            Db.stopRecording(changes);
         }
         return ret;
     }
+
+    /**
+     *
+     * @return
+     * @throws SQLiteException
+     */
+    private long executeInner() throws SQLiteException {
+        if (mUpsert && mDb.inTransaction()) {
+
+            // the probe has to run on the connection of the insert - only the caller's transaction makes sure
+            // of that (outside of one a read only statement may run on an other connection of the wal pool)
+            // an update does not change the last inserted id
+            // !note: an insert re-using the rowid inserted last (deleted since) can not be told from an
+            // update - it is reported as update
+            final long lastId = mLastRowIdStatement.simpleQueryForLong();
+            try {
+                final long ret = mInsertStatement.executeInsert();
+                return (ret == -1 || ret == lastId) ? 0 : ret;
+            } catch (SQLiteConstraintException e) {
+
+                // constraint failed on an other unique column - the row may still be there to update
+                return mUpdateStatement != null && mUpdateStatement.executeUpdateDelete() > 0 ? 0 : ERROR;
+            }
+        }
+
+        if (mUpdateStatement == null) {
+            return mInsertStatement.executeInsert();
+        }
+
+        // most rows exist already when syncing
+        if (mUpdateStatement.executeUpdateDelete() > 0) {
+            return 0;
+        }
+        try {
+            return mInsertStatement.executeInsert();
+        } catch (SQLiteException e) {
+
+            // constraint failed on an other unique column
+            return ERROR;
+        }
+    }
 	
 	/**
 	 * 
@@ -288,14 +559,22 @@ public class JSONToDbHelper {
 		if (lJSONtoDbValueInterface != null) {
 			ids = lJSONtoDbValueInterface.beforeDelete(tableName, ids);
 		}
-		db.delete(tableName, new Condition("id", ids).toString());
 		
-		// delete from joined tables
-		for(Column column : db.getTableByName(tableName).getColumns()) {
-			if ((column.type & Table.JOINED_TABLE) == 0) {
-				continue;
+		// ids are bound in batches - all in one transaction so joined rows do not outlive their main row
+		db.beginTransaction();
+		try {
+			db.deleteIn(tableName, "id", ids);
+			
+			// delete from joined tables
+			for(Column column : db.getTableByName(tableName).getColumns()) {
+				if ((column.type & Table.JOINED_TABLE) == 0) {
+					continue;
+				}
+				db.deleteIn(column.name, tableName + "_id", ids);
 			}
-			db.delete(column.name, new Condition(tableName + "_id", ids).toString());
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
 		}
 	}
 	
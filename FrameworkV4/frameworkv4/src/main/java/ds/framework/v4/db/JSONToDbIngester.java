@@ -0,0 +1,491 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+package ds.framework.v4.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.json.JSONObject;
+
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import ds.framework.v4.common.Debug;
+import ds.framework.v4.db.JSONToDbHelper.JSONToDbValueInterface;
+import ds.framework.v4.db.Table.Column;
+import ds.framework.v4.io.HttpURLRequest;
+
+/**
+ * bulk load a json array of rows into a table while reading it from a stream<br/>
+ * rows are not built as JSONObjects - values go from the reader into compiled statements (one per column set)<br/>
+ * rows are written in transactions of 'batch size' rows<br/>
+ * insert / update works the same way as in JSONToDbHelper<br/>
+ * !note: joined table columns are skipped - use JSONToDbHelper for rows with joined data
+ */
+public class JSONToDbIngester {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	// kind of value read for a column in the current row
+	private static final int ABSENT = 0;
+	private static final int NULL = 1;
+	private static final int LONG = 2;
+	private static final int DOUBLE = 3;
+	private static final int STRING = 4;
+
+	final private Db mDb;
+	final private Table mTable;
+	final private Column[] mColumns;
+	final private HashMap<String, Integer> mColumnIndexes = new HashMap<String, Integer>();
+
+	// current row by column index
+	final private int[] mKinds;
+	final private long[] mLongs;
+	final private double[] mDoubles;
+	final private String[] mStrings;
+	final private boolean[] mRowPresent;
+
+	// statements by column set
+	final private HashMap<String, JSONToDbHelper> mHelpers = new HashMap<String, JSONToDbHelper>();
+	private JSONToDbHelper mHelper;
+	private boolean[] mPresent;
+
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	private JSONToDbValueInterface mValueInterface;
+	private OnProgressListener mOnProgressListener;
+
+	private int mRowCount;
+	private int mFailedCount;
+	private long mElapsed;
+
+	/**
+	 *
+	 * @param db
+	 * @param table
+	 */
+	public JSONToDbIngester(Db db, Table table) {
+		mDb = db;
+		mTable = table;
+		mColumns = table.getColumns();
+
+		final int count = mColumns.length;
+		mKinds = new int[count];
+		mLongs = new long[count];
+		mDoubles = new double[count];
+		mStrings = new String[count];
+		mRowPresent = new boolean[count];
+
+		for(int c = 0; c < count; ++c) {
+			if ((mColumns[c].type & Table.JOINED_TABLE) == 0) {
+				mColumnIndexes.put(mColumns[c].name, c);
+			}
+		}
+	}
+
+	/**
+	 * number of rows written in one transaction
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		mBatchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * !note: values are boxed for the interface - ingesting is slower with one
+	 *
+	 * @param valueInterface
+	 */
+	public void setValueInterface(JSONToDbValueInterface valueInterface) {
+		mValueInterface = valueInterface;
+	}
+
+	/**
+	 * called after every committed batch and at the end
+	 *
+	 * @param listener
+	 */
+	public void setOnProgressListener(OnProgressListener listener) {
+		mOnProgressListener = listener;
+	}
+
+	/**
+	 * rows written (committed) by the last ingest
+	 *
+	 * @return
+	 */
+	public int getRowCount() {
+		return mRowCount;
+	}
+
+	/**
+	 * rows of the last ingest which could not be written (ie. a constraint failed on an other unique column)<br/>
+	 * these are not in getRowCount()
+	 *
+	 * @return
+	 */
+	public int getFailedCount() {
+		return mFailedCount;
+	}
+
+	/**
+	 * speed of the last ingest
+	 *
+	 * @return
+	 */
+	public double getRowsPerSecond() {
+		return mRowCount * 1000.0 / Math.max(1, mElapsed);
+	}
+
+	/**
+	 * ingest a json array of rows from an utf-8 stream
+	 *
+	 * @param stream
+	 * @return number of rows written
+	 * @throws IOException
+	 * @throws SQLiteException
+	 */
+	public int ingest(InputStream stream) throws IOException, SQLiteException {
+		final JsonReader reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+		try {
+			return ingest(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * ingest the json array of rows the reader is at<br/>
+	 * on error the current batch is rolled back, batches written before stay
+	 *
+	 * @param reader
+	 * @return number of rows written
+	 * @throws IOException
+	 * @throws SQLiteException
+	 */
+	public int ingest(JsonReader reader) throws IOException, SQLiteException {
+		final long start = SystemClock.elapsedRealtime();
+		mRowCount = 0;
+		mFailedCount = 0;
+		mElapsed = 0;
+
+		// rows read / written in the current batch
+		int inBatch = 0;
+		int written = 0;
+		mDb.beginTransaction();
+		try {
+			reader.beginArray();
+			while(reader.hasNext()) {
+				readRow(reader);
+				if (writeRow()) {
+					++written;
+				} else {
+					++mFailedCount;
+				}
+
+				if (++inBatch == mBatchSize) {
+					mDb.setTransactionSuccessful();
+					mDb.endTransaction();
+					mRowCount += written;
+					inBatch = 0;
+					written = 0;
+
+					mElapsed = SystemClock.elapsedRealtime() - start;
+					if (mOnProgressListener != null) {
+						mOnProgressListener.onProgress(mRowCount, getRowsPerSecond());
+					}
+
+					mDb.beginTransaction();
+				}
+			}
+			reader.endArray();
+
+			mDb.setTransactionSuccessful();
+			mRowCount += written;
+		} catch(IllegalStateException e) {
+
+			// JsonReader throws this on unexpected tokens
+			throw new IOException(e.getMessage());
+		} finally {
+			mDb.endTransaction();
+			mElapsed = SystemClock.elapsedRealtime() - start;
+			
+			// give statements back to the db's cache
+			for(JSONToDbHelper helper : mHelpers.values()) {
+				helper.close();
+			}
+			mHelpers.clear();
+			mHelper = null;
+			mPresent = null;
+		}
+
+Debug.logD("JSONToDbIngester", mTable.getName() + ": " + mRowCount + " rows in " + mElapsed + "ms (" + (int) getRowsPerSecond() + " rows/s)" + 
+		(mFailedCount > 0 ? ", " + mFailedCount + " failed" : ""));
+		if (mOnProgressListener != null) {
+			mOnProgressListener.onProgress(mRowCount, getRowsPerSecond());
+		}
+		return mRowCount;
+	}
+
+	/**
+	 *
+	 * @param reader
+	 * @throws IOException
+	 */
+	private void readRow(JsonReader reader) throws IOException {
+		Arrays.fill(mKinds, ABSENT);
+
+		reader.beginObject();
+		while(reader.hasNext()) {
+			final Integer index = mColumnIndexes.get(reader.nextName());
+			if (index == null) {
+				reader.skipValue();
+				continue;
+			}
+			readValue(reader, index);
+		}
+		reader.endObject();
+	}
+
+	/**
+	 *
+	 * @param reader
+	 * @param c
+	 * @throws IOException
+	 */
+	private void readValue(JsonReader reader, int c) throws IOException {
+		final JsonToken token = reader.peek();
+		switch(token) {
+			case NULL:
+				reader.nextNull();
+				mKinds[c] = NULL;
+				break;
+
+			case BOOLEAN:
+				setLong(c, reader.nextBoolean() ? 1 : 0, true);
+				break;
+
+			case BEGIN_OBJECT:
+				mKinds[c] = STRING;
+				mStrings[c] = HttpURLRequest.readJSONObject(reader).toString();
+				break;
+
+			case BEGIN_ARRAY:
+				mKinds[c] = STRING;
+				mStrings[c] = HttpURLRequest.readJSONArray(reader).toString();
+				break;
+
+			default:
+				setFromString(c, reader.nextString());
+				break;
+		}
+	}
+
+	/**
+	 *
+	 * @param c
+	 * @param value
+	 * @param isBoolean
+	 */
+	private void setLong(int c, long value, boolean isBoolean) {
+		switch(mColumns[c].type & Table.TYPE_MASK) {
+			case Table.INTEGER:
+			case Table.BOOLEAN:
+				mKinds[c] = LONG;
+				mLongs[c] = value;
+				break;
+
+			case Table.REAL:
+				mKinds[c] = DOUBLE;
+				mDoubles[c] = value;
+				break;
+
+			default:
+				mKinds[c] = STRING;
+				mStrings[c] = isBoolean ? String.valueOf(value == 1) : String.valueOf(value);
+				break;
+		}
+	}
+
+	/**
+	 *
+	 * @param c
+	 * @param value
+	 */
+	private void setFromString(int c, String value) {
+		try {
+			switch(mColumns[c].type & Table.TYPE_MASK) {
+				case Table.INTEGER:
+					mKinds[c] = LONG;
+					try {
+						mLongs[c] = Long.parseLong(value);
+					} catch(NumberFormatException e) {
+						mLongs[c] = (long) Double.parseDouble(value);
+					}
+					break;
+
+				case Table.BOOLEAN:
+					mKinds[c] = LONG;
+					if ("true".equals(value) || "false".equals(value)) {
+						mLongs[c] = "true".equals(value) ? 1 : 0;
+					} else {
+						mLongs[c] = Long.parseLong(value);
+					}
+					break;
+
+				case Table.REAL:
+					mKinds[c] = DOUBLE;
+					mDoubles[c] = value.length() == 0 ? 0.0d : Double.parseDouble(value);
+					break;
+
+				default:
+					mKinds[c] = STRING;
+					mStrings[c] = value;
+					break;
+			}
+		} catch(NumberFormatException e) {
+			mKinds[c] = NULL;
+			if ((mColumns[c].type & Table.NULL) == 0) {
+				android.util.Log.e("Bad data format", "table: " + mTable.getName() + " / column: " + mColumns[c].name + " / value: " + value);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param c
+	 * @param value
+	 */
+	private void setFromObject(int c, Object value) {
+		if (value == null || value == JSONObject.NULL) {
+			mKinds[c] = NULL;
+		} else if (value instanceof Boolean) {
+			setLong(c, (Boolean) value ? 1 : 0, true);
+		} else if (value instanceof Double || value instanceof Float) {
+			if ((mColumns[c].type & Table.TYPE_MASK) == Table.REAL) {
+				mKinds[c] = DOUBLE;
+				mDoubles[c] = ((Number) value).doubleValue();
+			} else {
+				setFromString(c, value.toString());
+			}
+		} else if (value instanceof Number) {
+			setLong(c, ((Number) value).longValue(), false);
+		} else {
+			setFromString(c, value.toString());
+		}
+	}
+
+	/**
+	 *
+	 * @param c
+	 * @return
+	 */
+	private Object getAsObject(int c) {
+		switch(mKinds[c]) {
+			case LONG:
+				return mLongs[c];
+
+			case DOUBLE:
+				return mDoubles[c];
+
+			case STRING:
+				return mStrings[c];
+
+			default:
+				return JSONObject.NULL;
+		}
+	}
+
+	/**
+	 *
+	 * @return false if the row could not be written
+	 * @throws SQLiteException
+	 */
+	private boolean writeRow() throws SQLiteException {
+		final int count = mColumns.length;
+
+		if (mValueInterface != null) {
+			final String tableName = mTable.getName();
+			for(int c = 0; c < count; ++c) {
+				if (mKinds[c] != ABSENT) {
+					setFromObject(c, mValueInterface.beforeInsert(tableName, mColumns[c].name, getAsObject(c)));
+				}
+			}
+		}
+
+		// statement for the column set of this row - usually the same as for the previous one
+		boolean changed = mPresent == null;
+		for(int c = 0; c < count; ++c) {
+			mRowPresent[c] = mKinds[c] != ABSENT;
+			if (!changed && mRowPresent[c] != mPresent[c]) {
+				changed = true;
+			}
+		}
+		if (changed) {
+			final char[] signature = new char[count];
+			for(int c = 0; c < count; ++c) {
+				signature[c] = mRowPresent[c] ? '1' : '0';
+			}
+			final String key = new String(signature);
+			mHelper = mHelpers.get(key);
+			if (mHelper == null) {
+				mHelper = new JSONToDbHelper();
+				mHelper.createStatement(mTable, mRowPresent, mDb);
+				mHelpers.put(key, mHelper);
+			}
+			mPresent = mRowPresent.clone();
+		}
+
+		mHelper.clearBindings();
+		final int columnCount = mHelper.getColumnCount();
+		for(int position = 0; position < columnCount; ++position) {
+			final int c = mHelper.getColumnIndex(position);
+			switch(mKinds[c]) {
+				case LONG:
+					mHelper.bindLong(position, mLongs[c]);
+					break;
+
+				case DOUBLE:
+					mHelper.bindDouble(position, mDoubles[c]);
+					break;
+
+				case STRING:
+					mHelper.bindString(position, mStrings[c]);
+					break;
+
+				default:
+					mHelper.bindNull(position);
+					break;
+			}
+		}
+		return mHelper.execute() >= 0;
+	}
+
+	public interface OnProgressListener {
+
+		/**
+		 *
+		 * @param rows - rows written so far
+		 * @param rowsPerSecond
+		 */
+		public void onProgress(int rows, double rowsPerSecond);
+	}
+}
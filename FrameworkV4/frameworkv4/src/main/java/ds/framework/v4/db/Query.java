@@ -213,6 +213,23 @@ public class Query {
         return this;
 	}
 	
+	/**
+	 * order by 
+	 * 
+	 * @param by
+	 * @param asc - is ascending
+	 * @param collate
+	 * @param add - false => reset
+     * @return
+	 */
+	public Query orderBy(String by, boolean asc, String collate, boolean add) {
+		if (!add) {
+			mOrderBy = null;
+		}
+		orderBy(by, asc, collate);
+        return this;
+	}
+	
 	/**
 	 * set limit
 	 * 
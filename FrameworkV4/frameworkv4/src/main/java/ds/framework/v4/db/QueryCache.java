@@ -0,0 +1,237 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+package ds.framework.v4.db;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import ds.framework.v4.data.CursorSnapshot;
+
+/**
+ * results of the queries loaded with DbQuery.setCached(true) - keyed by their rendered sql and bound values<br/>
+ * results are kept as CursorSnapshots, each load gets its own cursor over the same rows<br/>
+ * least recently used results are dropped over the entry count or byte limit<br/>
+ * a result is dropped when any table it was read from (joined tables too) is written through Db<br/>
+ * <br/>
+ * !note: writes Db can not see (statements from getSQLiteStatement / getCachedStatement, InsertHelper,
+ * an other process) do not invalidate the results - call clear() after them
+ */
+public class QueryCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+	public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	final private LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// bumped on each write of the table - a result loaded before a write is not stored
+	final private HashMap<String, Long> mGenerations = new HashMap<String, Long>();
+
+	private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+	private long mMaxBytes = DEFAULT_MAX_BYTES;
+	private long mBytes;
+
+	// set when the first cached query starts loading - writes are recorded for invalidation from then on
+	private volatile boolean mUsed;
+
+	private int mHitCount;
+	private int mMissCount;
+	private int mInvalidationCount;
+
+	QueryCache() {
+		;
+	}
+
+	/**
+	 *
+	 * @param maxEntries
+	 * @param maxBytes - estimated size of all stored results
+	 */
+	public synchronized void setLimits(int maxEntries, long maxBytes) {
+		mMaxEntries = Math.max(0, maxEntries);
+		mMaxBytes = Math.max(0, maxBytes);
+		trim();
+	}
+
+	/**
+	 * drop all results
+	 */
+	public synchronized void clear() {
+		mEntries.clear();
+		mBytes = 0;
+
+		// results being loaded are not stored either
+		for(Map.Entry<String, Long> generation : mGenerations.entrySet()) {
+			generation.setValue(generation.getValue() + 1);
+		}
+	}
+
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * number of results dropped because a table was written
+	 *
+	 * @return
+	 */
+	public synchronized int getInvalidationCount() {
+		return mInvalidationCount;
+	}
+
+	/**
+	 *
+	 * @return
+	 */
+	boolean isUsed() {
+		return mUsed;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return new cursor over the stored result or null
+	 */
+	synchronized Cursor get(String key) {
+		final Entry entry = mEntries.get(key);
+		if (entry == null) {
+			++mMissCount;
+			return null;
+		}
+		++mHitCount;
+		return entry.result.copy();
+	}
+
+	/**
+	 * generations of tables - call before loading the result to store
+	 *
+	 * @param tables
+	 * @return
+	 */
+	synchronized long[] getGenerations(List<String> tables) {
+
+		// before the query runs - a write committed while it runs has to bump the generations
+		mUsed = true;
+
+		final long[] generations = new long[tables.size()];
+		for(int i = 0; i < generations.length; ++i) {
+			final Long generation = mGenerations.get(tables.get(i));
+			generations[i] = generation == null ? 0 : generation;
+		}
+		return generations;
+	}
+
+	/**
+	 * copy cursor into a snapshot and store it if none of the tables was written since getGenerations
+	 *
+	 * @param key
+	 * @param tables
+	 * @param generations - see getGenerations
+	 * @param cursor - closed
+	 * @return new cursor over the result
+	 */
+	Cursor put(String key, List<String> tables, long[] generations, Cursor cursor) {
+
+		// copy outside of the lock - it reads every row
+		final CursorSnapshot result = CursorSnapshot.create(cursor);
+		final long bytes = result.getByteSize();
+
+		synchronized(this) {
+			if (bytes > mMaxBytes || mMaxEntries == 0 || !Arrays.equals(generations, getGenerations(tables))) {
+				return result;
+			}
+
+			final Entry old = mEntries.put(key, new Entry(result, tables.toArray(new String[tables.size()]), bytes));
+			if (old != null) {
+				mBytes -= old.bytes;
+			}
+			mBytes += bytes;
+			trim();
+		}
+		return result.copy();
+	}
+
+	/**
+	 * drop the results read from tables
+	 *
+	 * @param tables
+	 */
+	synchronized void invalidate(Collection<String> tables) {
+		if (tables.isEmpty()) {
+			return;
+		}
+		for(String table : tables) {
+			final Long generation = mGenerations.get(table);
+			mGenerations.put(table, generation == null ? 1 : generation + 1);
+		}
+
+		final Iterator<Entry> iterator = mEntries.values().iterator();
+		while(iterator.hasNext()) {
+			final Entry entry = iterator.next();
+			for(String table : entry.tables) {
+				if (tables.contains(table)) {
+					iterator.remove();
+					mBytes -= entry.bytes;
+					++mInvalidationCount;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * !note: call in synchronized(this)
+	 */
+	private void trim() {
+		final Iterator<Entry> iterator = mEntries.values().iterator();
+		while(iterator.hasNext() && (mEntries.size() > mMaxEntries || mBytes > mMaxBytes)) {
+			mBytes -= iterator.next().bytes;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * @class Entry
+	 */
+	private static class Entry {
+		final CursorSnapshot result;
+		final String[] tables;
+		final long bytes;
+
+		Entry(CursorSnapshot result, String[] tables, long bytes) {
+			this.result = result;
+			this.tables = tables;
+			this.bytes = bytes;
+		}
+	}
+}
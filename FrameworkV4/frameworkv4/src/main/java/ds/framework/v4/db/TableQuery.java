@@ -16,6 +16,9 @@
 
 package ds.framework.v4.db;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.database.Cursor;
 
 public class TableQuery extends DbQuery {
@@ -23,14 +26,19 @@ public class TableQuery extends DbQuery {
 	String mAlias;
 	String mJoin = "";
 	
+	// main table first, then the joined ones - without aliases
+	final ArrayList<String> mTableNames = new ArrayList<String>();
+	
 	public TableQuery(String table, Db db) {
 		super(db);
 		mTable = table;
 		mAlias = null;
+		mTableNames.add(table);
 	}
 	
 	public TableQuery(String table, String alias, Db db) {
 		super(db);
+		mTableNames.add(table);
 		mAlias = alias;
 		if (mAlias != null) {
 			mTable = table + " AS " + mAlias;
@@ -150,6 +158,7 @@ public class TableQuery extends DbQuery {
 	 * @return
 	 */
 	public TableQuery join(String tableName, String alias, String type, ConditionTree on) {
+		mTableNames.add(tableName);
 		if (alias != null) {
 			tableName += " AS " + alias;
 		}
@@ -171,6 +180,17 @@ public class TableQuery extends DbQuery {
 		return mTable + mJoin;
 	}
 	
+	/**
+	 * names of the tables the query reads - main table first, then the joined ones<br/>
+	 * !note: tables read in sub queries are not included
+	 * 
+	 * @return
+	 */
+	@Override
+	public List<String> getTableNames() {
+		return mTableNames;
+	}
+	
 	/**
 	 */
 	public String getMainTable() {
@@ -0,0 +1,280 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+package ds.framework.v4.db;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import ds.framework.v4.common.Debug;
+
+/**
+ * gives free pages of the database back to the file system in the background, in small steps<br/>
+ * Db tells it when rows were deleted - when the database was not written for a while the freelist is checked and
+ * if it grew over the threshold it is reclaimed with PRAGMA incremental_vacuum(step) till it is empty<br/>
+ * <br/>
+ * incremental vacuum needs auto_vacuum=INCREMENTAL which only a full VACUUM can switch on for an existing file
+ * (android creates android_metadata before Db gets a new database) - so the first time the threshold is reached
+ * the database is switched and reclaimed by one full VACUUM, here in the background
+ */
+public class VacuumScheduler {
+
+	public static final long DEFAULT_IDLE_DELAY = 5000;
+	public static final long DEFAULT_STEP_DELAY = 100;
+	public static final int DEFAULT_STEP_PAGES = 128;
+	public static final int DEFAULT_MIN_FREE_PAGES = 256;
+	public static final float DEFAULT_FREE_RATIO = 0.05f;
+
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+	private ScheduledThreadPoolExecutor mExecutor;
+	private ScheduledFuture<?> mPending;
+
+	private Db mDb;
+	private long mLastFreed;
+	private boolean mReclaiming;
+
+	private long mIdleDelay = DEFAULT_IDLE_DELAY;
+	private long mStepDelay = DEFAULT_STEP_DELAY;
+	private int mStepPages = DEFAULT_STEP_PAGES;
+	private int mMinFreePages = DEFAULT_MIN_FREE_PAGES;
+	private float mFreeRatio = DEFAULT_FREE_RATIO;
+
+	private int mStepCount;
+	private long mReclaimedPages;
+	private int mFullVacuumCount;
+
+	final private Runnable mStep = new Runnable() {
+
+		@Override
+		public void run() {
+			runStep();
+		}
+	};
+
+	VacuumScheduler() {
+		;
+	}
+
+	/**
+	 * when to start reclaiming - the freelist has to reach both limits
+	 *
+	 * @param minFreePages
+	 * @param freeRatio - free pages / all pages
+	 */
+	public synchronized void setThreshold(int minFreePages, float freeRatio) {
+		mMinFreePages = Math.max(1, minFreePages);
+		mFreeRatio = Math.max(0, freeRatio);
+	}
+
+	/**
+	 *
+	 * @param pages - pages reclaimed in one step
+	 * @param delay - in milliseconds, pause between steps so writers are not held up
+	 */
+	public synchronized void setStep(int pages, long delay) {
+		mStepPages = Math.max(1, pages);
+		mStepDelay = Math.max(0, delay);
+	}
+
+	/**
+	 *
+	 * @param delay - in milliseconds, how long the database should be left alone after a delete
+	 */
+	public synchronized void setIdleDelay(long delay) {
+		mIdleDelay = Math.max(0, delay);
+	}
+
+	/**
+	 * pages were (probably) freed - check the freelist when the database is idle
+	 *
+	 * @param db
+	 */
+	public synchronized void onFreed(Db db) {
+		mDb = db;
+		mLastFreed = SystemClock.uptimeMillis();
+		if (mPending == null) {
+			schedule(mIdleDelay);
+		}
+	}
+
+	/**
+	 * drop the pending check / step
+	 */
+	public synchronized void cancel() {
+		if (mPending != null) {
+			mPending.cancel(false);
+			mPending = null;
+		}
+		mReclaiming = false;
+	}
+
+	public synchronized int getStepCount() {
+		return mStepCount;
+	}
+
+	public synchronized long getReclaimedPages() {
+		return mReclaimedPages;
+	}
+
+	/**
+	 * number of full vacuums run to switch the database to auto_vacuum=INCREMENTAL
+	 *
+	 * @return
+	 */
+	public synchronized int getFullVacuumCount() {
+		return mFullVacuumCount;
+	}
+
+	/**
+	 * !note: call in synchronized(this)
+	 *
+	 * @param delay
+	 */
+	private void schedule(long delay) {
+		if (mExecutor == null) {
+			mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "VacuumScheduler");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		mPending = mExecutor.schedule(mStep, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 *
+	 */
+	private void runStep() {
+		final Db db;
+		synchronized(this) {
+			mPending = null;
+
+			final long idle = SystemClock.uptimeMillis() - mLastFreed;
+			if (idle < mIdleDelay) {
+				schedule(mIdleDelay - idle);
+				return;
+			}
+			db = mDb;
+		}
+
+		// keep the database open while working on it - nothing to do if it was closed
+		if (db == null || !db.retain()) {
+			synchronized(this) {
+				mReclaiming = false;
+			}
+			return;
+		}
+
+		boolean more = false;
+		try {
+			more = step(db.getSQLiteDatabase());
+		} catch(Throwable e) {
+			Debug.logException(e);
+		} finally {
+			db.close();
+		}
+
+		synchronized(this) {
+			if (!more) {
+				mReclaiming = false;
+			} else if (mPending == null) {
+				schedule(mStepDelay);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param sdb
+	 * @return true if there are more pages to reclaim
+	 */
+	private boolean step(SQLiteDatabase sdb) {
+		final long free = queryForLong(sdb, "PRAGMA freelist_count;");
+		if (free == 0) {
+			return false;
+		}
+
+		final int stepPages;
+		synchronized(this) {
+			if (!mReclaiming) {
+				final long pages = queryForLong(sdb, "PRAGMA page_count;");
+				if (free < mMinFreePages || free < pages * mFreeRatio) {
+					return false;
+				}
+				mReclaiming = true;
+			}
+			stepPages = mStepPages;
+		}
+
+		if (queryForLong(sdb, "PRAGMA auto_vacuum;") != AUTO_VACUUM_INCREMENTAL) {
+
+			// switch once - the full vacuum also reclaims all free pages so nothing is left for the steps
+Debug.logD("VacuumScheduler", "auto_vacuum is not INCREMENTAL - switching with a full vacuum");
+			try {
+				sdb.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+				sdb.execSQL("VACUUM;");
+				synchronized(this) {
+					++mFullVacuumCount;
+				}
+			} finally {
+				synchronized(this) {
+					mReclaiming = false;
+				}
+			}
+			return false;
+		}
+
+		// incremental_vacuum frees a page on each step of the statement so it has to be run to its end
+		final Cursor cursor = sdb.rawQuery("PRAGMA incremental_vacuum(" + stepPages + ");", null);
+		try {
+			cursor.getCount();
+		} finally {
+			cursor.close();
+		}
+
+		synchronized(this) {
+			++mStepCount;
+			mReclaimedPages += Math.min(free, stepPages);
+		}
+		return free > stepPages;
+	}
+
+	/**
+	 *
+	 * @param sdb
+	 * @param sql
+	 * @return
+	 */
+	private static long queryForLong(SQLiteDatabase sdb, String sql) {
+		final SQLiteStatement statement = sdb.compileStatement(sql);
+		try {
+			return statement.simpleQueryForLong();
+		} finally {
+			statement.close();
+		}
+	}
+}
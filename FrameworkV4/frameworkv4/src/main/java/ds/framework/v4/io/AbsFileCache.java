@@ -21,9 +21,6 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.HashMap;
 
 import android.content.Context;
 import android.net.Uri;
@@ -36,17 +33,18 @@ import ds.framework.v4.common.Debug;
 
 abstract public class AbsFileCache<T> implements InterfaceCache<String, T> {
 
-	private static HashMap<String, Object> mFileCacheLocks = new HashMap<>();
-    private static HashMap<String, Integer> mFileCacheLockCounts = new HashMap<>();
+	// per file locks - only the same file is excluded, other files and other caches are free to go
+	final private KeyLocks mLocks = new KeyLocks();
 
-	private Thread mCT;
-	private Thread mDT;
-	
 	String mDir;
 	long mMaxSize;
-	long mSize;
+	
+	private FileCacheJournal mJournal;
 	
 	public AbsFileCache(Context context, String dir, Long maxSize) {
+
+		// before the journal thread starts - it trims to it when replayed
+		mMaxSize = maxSize;
 		if (context.getExternalCacheDir() == null) {
 			mDir = null;
 			return;
@@ -55,12 +53,11 @@ abstract public class AbsFileCache<T> implements InterfaceCache<String, T> {
 		File mFD = new File(mDir);
 		mFD.mkdirs();
 		if (mFD.exists()) {
-			mSize = 0l;
-			countCurrentSizeInThread(mFD);
+			mJournal = new FileCacheJournal(mFD);
+			openJournalInThread();
 		} else {
 			mDir = null;
 		}
-		mMaxSize = maxSize;
 	}
 	
 	public String getCacheDir() {
@@ -83,11 +80,29 @@ abstract public class AbsFileCache<T> implements InterfaceCache<String, T> {
 	 */
 	public void changeMaxSize(Long newMaxSize) {
 		mMaxSize = newMaxSize;
-		if (mMaxSize != -1 && mSize > mMaxSize) {
-			deleteAboveMax(new File(mDir));
+		if (mMaxSize != -1 && mJournal != null) {
+			trimToSize(mMaxSize);
 		}
 	}
 	
+	/**
+	 * is the cache usable right now (storage is mounted)
+	 * 
+	 * @return
+	 */
+	public boolean isAvailable() {
+		return mMaxSize != 0 && mDir != null && Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
+	}
+	
+	/**
+	 * get the current size of the cache
+	 * 
+	 * @return
+	 */
+	public long getSize() {
+		return mJournal == null ? 0 : mJournal.size();
+	}
+	
 	/**
 	 * 
 	 */
@@ -96,12 +111,8 @@ abstract public class AbsFileCache<T> implements InterfaceCache<String, T> {
 			return false;
 		}
 
-		synchronized(getLock(filename)) {
-			boolean exists = new File(mDir, getRealFilename(filename)).exists();
-            removeLock(filename);
-            return exists;
-
-		}
+		// answered from the index - the file is only checked to drop an entry deleted behind our back
+		return exists(getRealFilename(filename));
 	}
 
 	/**
@@ -111,17 +122,26 @@ abstract public class AbsFileCache<T> implements InterfaceCache<String, T> {
 	 * @return
 	 */
 	public T get(String filename) {
-		synchronized(getLock(filename)) {
-			if (mMaxSize == 0 || mDir == null || !Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-				return null;
-			}
+		if (mMaxSize == 0 || mDir == null || !Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+			return null;
+		}
 
+		final String realFilename = getRealFilename(filename);
+		if (!mJournal.contains(realFilename)) {
+			return null;
+		}
+
+		mLocks.lock(realFilename);
+		try {
 			FileInputStream inStream = null;
 			T result = null;
 			try {
-				inStream = new FileInputStream(new File(mDir, getRealFilename(filename)));
+				inStream = new FileInputStream(new File(mDir, realFilename));
 				result = getObjectFromStream(inStream);
 			} catch (FileNotFoundException e) {
+				
+				// removed from outside
+				mJournal.recordRemove(realFilename);
 				return null;
 			} catch (OutOfMemoryError e) {
 				return null;
@@ -138,12 +158,15 @@ abstract public class AbsFileCache<T> implements InterfaceCache<String, T> {
 			if (result == null) {
 				
 				// file exists but could not get from filesystem - remove that file
-				new File(mDir, filename).delete();
+				new File(mDir, realFilename).delete();
+				mJournal.recordRemove(realFilename);
+			} else {
+				mJournal.recordRead(realFilename);
 			}
-
-            removeLock(filename);
 			
 			return result;
+		} finally {
+			mLocks.unlock(realFilename);
 		}
 	}
 
@@ -151,76 +174,137 @@ abstract public class AbsFileCache<T> implements InterfaceCache<String, T> {
 	 * put content into file cache
 	 */
 	public T put(String filename, T value) {
-		synchronized(getLock(filename)) {
-			File file = getOutFile(filename);
-			if (file != null && !file.exists()) {                // only return value if file already exists - need to delete this to overwrite
-                try {
-                    FileOutputStream outStream = new FileOutputStream(file);
-
-                    putObjectIntoStream(value, outStream);
-
-                    outStream.flush();
-                    outStream.close();
-
-                    synchronized (AbsFileCache.class) {
-                        mSize += file.length();
-                        if (mSize > getCurrentMaxSize()) {
-
-                            Debug.logW("file cache max size exceeded", mSize + "");
-
-                            if (mDT != null) {
-
-                                // already doing this
-                                return value;
-                            }
-                            mDT = new Thread() {
-
-                                @Override
-                                public void run() {
-                                    deleteAboveMax(new File(mDir));
-                                    mDT = null;
-                                }
-                            };
-                            mDT.start();
-                        }
-                    }
-                } catch (IOException e) {
-                    value = null;
-                }
-            }
+		final Editor editor = edit(filename);
+		if (editor == null) {
+			
+			// only return value if file already exists - need to delete this to overwrite
+			return value;
+		}
+		
+		try {
+			putObjectIntoStream(value, editor.getOutputStream());
+			editor.commit();
+		} catch (IOException e) {
+			Debug.logException(e);
+			
+			editor.abort();
+			value = null;
 		}
-
-        removeLock(filename);
-
         return value;
 	}
+	
+	/**
+	 * start writing an entry directly through a stream<br/>
+	 * !note: call commit() or abort() on the returned editor from the same thread - the entry is locked till then
+	 * 
+	 * @param filename
+	 * @return null if the entry already exists or the cache is not available
+	 */
+	public Editor edit(String filename) {
+		final File file = getOutFile(filename);
+		if (file == null) {
+			return null;
+		}
+		
+		final String realFilename = getRealFilename(filename);
+		mLocks.lock(realFilename);
+		if (mJournal.contains(realFilename)) {
+			mLocks.unlock(realFilename);
+			return null;
+		}
+		
+		mJournal.recordEdit(realFilename);
+		
+		// write into a temporary file and rename it when done - nobody can see a partial file this way
+		final File partFile = new File(file.getPath() + FileCacheJournal.PART_SUFFIX);
+		try {
+			return new Editor(realFilename, file, partFile, new FileOutputStream(partFile));
+		} catch (IOException e) {
+			Debug.logException(e);
+			
+			mJournal.recordRemove(realFilename);
+			mLocks.unlock(realFilename);
+			return null;
+		}
+	}
+	
+	/**
+	 * 
+	 * @param filename
+	 * @return the file of an existing entry or null
+	 */
+	public File getFile(String filename) {
+		if (!isAvailable()) {
+			return null;
+		}
+		
+		final String realFilename = getRealFilename(filename);
+		if (!exists(realFilename)) {
+			return null;
+		}
+		mJournal.recordRead(realFilename);
+		return new File(mDir, realFilename);
+	}
+	
+	/**
+	 * is there an entry with this name and its file - the entry is removed if it has no file
+	 * 
+	 * @param realFilename
+	 * @return
+	 */
+	private boolean exists(String realFilename) {
+		if (!mJournal.contains(realFilename)) {
+			return false;
+		}
+		if (new File(mDir, realFilename).exists()) {
+			return true;
+		}
+		
+		mLocks.lock(realFilename);
+		try {
+			
+			// could have been written again while we were waiting
+			if (new File(mDir, realFilename).exists()) {
+				return mJournal.contains(realFilename);
+			}
+			mJournal.recordRemove(realFilename);
+			return false;
+		} finally {
+			mLocks.unlock(realFilename);
+		}
+	}
+	
+	/**
+	 * delete least recently used entries if the cache is too big
+	 */
+	private void trimIfNeeded() {
+		final long maxSize = getCurrentMaxSize();
+		if (mJournal.size() > maxSize) {
+			Debug.logW("file cache max size exceeded", mJournal.size() + "");
 
-    private Object getLock(String filename) {
-        synchronized (AbsFileCache.class) {
-            Object lock = mFileCacheLocks.get(filename);
-            if (lock != null) {
-                mFileCacheLockCounts.put(filename, mFileCacheLockCounts.get(filename) + 1);
-                return lock;
-            }
-            lock = new Object();
-            mFileCacheLockCounts.put(filename, 1);
-            return lock;
-        }
-    }
-
-    private void removeLock(String filename) {
-        synchronized (AbsFileCache.class) {
-            if (mFileCacheLocks.remove(filename) == null) {
-                return;
-            }
-            int count = mFileCacheLockCounts.get(filename);
-            if (count == 1) {
-                mFileCacheLockCounts.remove(filename);
-            } else {
-                mFileCacheLockCounts.put(filename, count - 1);
-            }
-        }
-    }
+			// least recently used entries are known - delete only as much as needed
+			trimToSize(maxSize);
+		}
+	}
+	
+	/**
+	 * remove least recently used entries from the index and delete their files<br/>
+	 * a file is only deleted if it was not written again in the meantime
+	 * 
+	 * @param maxSize
+	 */
+	private void trimToSize(long maxSize) {
+		for(String realFilename : mJournal.trimToSize(maxSize)) {
+			mLocks.lock(realFilename);
+			try {
+				if (!mJournal.contains(realFilename)) {
+					new File(mDir, realFilename).delete();
+				}
+			} finally {
+				mLocks.unlock(realFilename);
+			}
+		}
+	}
 	
 	/**
 	 * 
@@ -283,120 +367,123 @@ abstract public class AbsFileCache<T> implements InterfaceCache<String, T> {
 	abstract protected T getObjectFromStream(FileInputStream inStream);
 	
 	/**
-	 * put object to given stream
+	 * put object to given stream<br/>
+	 * throw IOException if the object could not be written - the entry is discarded then
 	 * 
 	 * @param value
 	 * @param outStream
+	 * @throws IOException
 	 */
-	abstract protected void putObjectIntoStream(T value, FileOutputStream outStream);
+	abstract protected void putObjectIntoStream(T value, FileOutputStream outStream) throws IOException;
 
 	/**
-	 * count size on 'disc' in thread
-	 * 
-	 * @param dir
+	 * read the cache index in thread - the first access waits for it if it is not ready yet
 	 */
-	private void countCurrentSizeInThread(final File dir) {
-		if (mCT != null) {
-			
-			// already doing this
-			return;
-		}
-		mCT = new Thread() {
+	private void openJournalInThread() {
+		new Thread() {
 			
 			@Override
 			public void run() {
-				synchronized(this) {
-					final long size = countAllSizeRec(dir);
-					mSize = size;
-					
-					Debug.logW("file cache current size", mSize + "");
-					
-					if (mMaxSize != -1 && size > mMaxSize) {
-						Debug.logW("file cache max size exceeded", mSize + "");
-						deleteAboveMax(dir);
-					}
-					mCT = null;
+				mJournal.open();
+				
+				Debug.logW("file cache current size", mJournal.size() + "");
+				
+				if (mMaxSize != -1 && mJournal.size() > mMaxSize) {
+					Debug.logW("file cache max size exceeded", mJournal.size() + "");
+					trimToSize(mMaxSize);
 				}
 			}
-		};
-		mCT.start();
+		}.start();
 	}
 	
-	/**
-	 * size on 'disc'
-	 * 
-	 * @return
-	 */
-	private long countAllSizeRec(File dir) {
-        Long size = 0l;
-
-        final String[] list = dir.list();
-
-        if (list == null) {
-        	return 0;
-        }
-
-        for (String file : list) {
-        	final File fFile = new File(dir, file);
-        	if (fFile.isDirectory()) { 
-        		size += countAllSizeRec(fFile);
-        	} else {
-        		size += fFile.length();
-        	}
-        }
-        return size;
-    }
-	
 	@Override
 	public void remove(String filename) {
-		new File(getRealFilename(filename)).delete();
-	}
-	
-	/**
-	 * delete oldest files till size is below or equal to max size
-	 */
-	synchronized private void deleteAboveMax(File dir) {
-        final String[] l = dir.list();
-        final long maxSize = (getCurrentMaxSize() * 3) / 4;
-        
-        final FileModifiedInfo[] list = new FileModifiedInfo[l.length];
-        final int s = l.length;
-        for(int i = 0; i < s; ++i) {
-        	list[i] = new FileModifiedInfo();
-        	list[i].file = new File(dir, l[i]);
-        	list[i].modified = list[i].file.lastModified(); 
-        }
-
-        Arrays.sort(list, new Comparator<FileModifiedInfo>() {
-            public int compare(FileModifiedInfo f1, FileModifiedInfo f2) {
-                return Long.valueOf(f1.modified).compareTo(
-                        f2.modified);
-            }
-        });
-        for (FileModifiedInfo info : list) {
-        	final File fFile = info.file;
-        	if (fFile.isDirectory()) {
-        		deleteAboveMax(fFile);
-        		if (fFile.list().length == 0) {
-        			fFile.delete();
-        		}
-        	} else {
-	        	mSize -= fFile.length();
-	            fFile.delete();
-        	}
-            if (mSize <= maxSize) {
-            	break;
-            }
-        }
-        Debug.logW("file cache above max deleted - new size", mSize + "");
+		if (mDir == null) {
+			return;
+		}
+		final String realFilename = getRealFilename(filename);
+		mLocks.lock(realFilename);
+		try {
+			new File(mDir, realFilename).delete();
+			mJournal.recordRemove(realFilename);
+		} finally {
+			mLocks.unlock(realFilename);
+		}
 	}
 
 	public String getRealFilename(String filename) {
 		return filename.replace("\\\\", "/").replace(":", "___");
 	}
 	
-	private static class FileModifiedInfo {
-		long modified;
-		File file;
+	/**
+	 * @class Editor
+	 */
+	public class Editor {
+		final private String mRealFilename;
+		final private File mFile;
+		final private File mPartFile;
+		final private FileOutputStream mOutStream;
+		private boolean mDone;
+		
+		Editor(String realFilename, File file, File partFile, FileOutputStream outStream) {
+			mRealFilename = realFilename;
+			mFile = file;
+			mPartFile = partFile;
+			mOutStream = outStream;
+		}
+		
+		public FileOutputStream getOutputStream() {
+			return mOutStream;
+		}
+		
+		/**
+		 * make the written entry visible
+		 * 
+		 * @throws IOException - the entry is aborted in this case
+		 */
+		public void commit() throws IOException {
+			if (mDone) {
+				return;
+			}
+			mDone = true;
+			try {
+				try {
+					mOutStream.flush();
+				} finally {
+					mOutStream.close();
+				}
+				
+				if (!mPartFile.renameTo(mFile)) {
+					throw new IOException("could not commit file cache entry: " + mRealFilename);
+				}
+				mJournal.recordCommit(mRealFilename, mFile.length());
+			} catch (IOException e) {
+				mPartFile.delete();
+				mJournal.recordRemove(mRealFilename);
+				throw(e);
+			} finally {
+				mLocks.unlock(mRealFilename);
+			}
+			
+			trimIfNeeded();
+		}
+		
+		/**
+		 * throw away what was written
+		 */
+		public void abort() {
+			if (mDone) {
+				return;
+			}
+			mDone = true;
+			try {
+				mOutStream.close();
+			} catch (IOException e) {
+				;
+			}
+			mPartFile.delete();
+			mJournal.recordRemove(mRealFilename);
+			mLocks.unlock(mRealFilename);
+		}
 	}
 }
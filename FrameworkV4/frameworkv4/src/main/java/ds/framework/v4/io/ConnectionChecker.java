@@ -16,6 +16,8 @@
 
 package ds.framework.v4.io;
 
+import java.util.ArrayList;
+
 import android.app.Activity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -31,6 +33,9 @@ public class ConnectionChecker {
 	private static int mTries;
 	private static boolean mOnlyWifi = false;
 	private static ConnectionChecker sInstance;
+	
+	final private static ArrayList<ConnectionChangedListener> sListeners = new ArrayList<ConnectionChangedListener>();
+	private static BroadcastReceiver sListenerReceiver;
 
 	private BroadcastReceiver mReceiver;
 	private ConnectionChangedListener mConnectionChangedListener;
@@ -115,10 +120,7 @@ public class ConnectionChecker {
 	 * register connectivity broadcast receiver
 	 */
 	public void registerReceiver(Context context, ConnectionChangedListener listener) {
-		PackageManager pm = context.getPackageManager();
-		if (pm.checkPermission(
-			    android.Manifest.permission.ACCESS_NETWORK_STATE, 
-			    context.getPackageName()) != PackageManager.PERMISSION_GRANTED) {
+		if (!canListen(context)) {
 			return;
 		}
 		if (mReceiver != null) {
@@ -152,6 +154,63 @@ public class ConnectionChecker {
 		mConnectionChangedListener = null;	
 	}
 	
+	/**
+	 * listen to connectivity changes - independent from registerReceiver so any number of listeners can be added<br/>
+	 * the receiver is registered on the application context while there is at least one listener<br/>
+	 * !note: right after registering the listener gets the current state (connectivity broadcast is sticky)
+	 * 
+	 * @param context
+	 * @param listener
+	 * @return false if changes can not be listened to (missing ACCESS_NETWORK_STATE permission)
+	 */
+	public static boolean addListener(Context context, ConnectionChangedListener listener) {
+		if (!canListen(context)) {
+			return false;
+		}
+		synchronized(sListeners) {
+			if (!sListeners.contains(listener)) {
+				sListeners.add(listener);
+			}
+			if (sListenerReceiver == null) {
+				sListenerReceiver = new ListenerReceiver();
+				context.getApplicationContext().registerReceiver(sListenerReceiver, 
+						new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @param context
+	 * @param listener
+	 */
+	public static void removeListener(Context context, ConnectionChangedListener listener) {
+		synchronized(sListeners) {
+			sListeners.remove(listener);
+			if (sListeners.isEmpty() && sListenerReceiver != null) {
+				try {
+					context.getApplicationContext().unregisterReceiver(sListenerReceiver);
+				} catch(IllegalArgumentException e) {
+					;
+				}
+				sListenerReceiver = null;
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @param context
+	 * @return
+	 */
+	private static boolean canListen(Context context) {
+		PackageManager pm = context.getPackageManager();
+		return pm.checkPermission(
+			    android.Manifest.permission.ACCESS_NETWORK_STATE, 
+			    context.getPackageName()) == PackageManager.PERMISSION_GRANTED;
+	}
+	
 	public class ConnectivityReceiver extends BroadcastReceiver {
 
 		@Override
@@ -167,6 +226,27 @@ public class ConnectionChecker {
 		
 	}
 	
+	private static class ListenerReceiver extends BroadcastReceiver {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			if (!ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+                return;
+			}
+			
+			final boolean connected = !intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
+			final ArrayList<ConnectionChangedListener> listeners;
+			synchronized(sListeners) {
+				
+				// listeners may remove themselves when called
+				listeners = new ArrayList<ConnectionChangedListener>(sListeners);
+			}
+			for(ConnectionChangedListener listener : listeners) {
+				listener.onConnectionChanged(connected);
+			}
+		}
+	}
+	
 	public interface ConnectionChangedListener {
 		public void onConnectionChanged(boolean connected);
 	}
@@ -0,0 +1,584 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package ds.framework.v4.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import ds.framework.v4.common.Debug;
+
+/**
+ * append only journal and in memory index of a file cache directory<br/>
+ * <br/>
+ * every change is written as a line into the journal:<br/>
+ * DIRTY name - an entry is being written<br/>
+ * CLEAN size name - an entry is written and can be read<br/>
+ * REMOVE name - an entry is removed<br/>
+ * READ name - an entry is accessed (for lru order)<br/>
+ * <br/>
+ * on open the journal is replayed so size and access order are known without
+ * looking at the cache directory - entries left DIRTY (a crash while writing) are deleted
+ * together with their partial files<br/>
+ * the journal is rewritten when it has too many redundant lines
+ */
+class FileCacheJournal {
+
+	static final String JOURNAL_FILE = ".journal";
+	static final String JOURNAL_FILE_TMP = ".journal.tmp";
+	
+	// suffix of the temporary file an entry is written into before it is renamed
+	static final String PART_SUFFIX = ".part";
+
+	private static final String MAGIC = "ds.framework.v4.io.FileCacheJournal";
+	private static final String VERSION = "1";
+
+	private static final String CLEAN = "CLEAN";
+	private static final String DIRTY = "DIRTY";
+	private static final String REMOVE = "REMOVE";
+	private static final String READ = "READ";
+
+	private static final int MIN_REDUNDANT_OPS_TO_COMPACT = 2000;
+
+	final private File mDir;
+	final private File mJournalFile;
+	final private File mJournalFileTmp;
+
+	// access ordered - first is the least recently used
+	final private LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+	// counted down when the journal is replayed - everything but open() waits for it
+	final private CountDownLatch mOpenLatch = new CountDownLatch(1);
+
+	private Writer mWriter;
+	private boolean mOpened;
+	private long mSize;
+	private int mRedundantOpCount;
+
+	FileCacheJournal(File dir) {
+		mDir = dir;
+		mJournalFile = new File(dir, JOURNAL_FILE);
+		mJournalFileTmp = new File(dir, JOURNAL_FILE_TMP);
+	}
+
+	/**
+	 * read the journal (or build it if there is none)<br/>
+	 * called once from the file cache's journal thread - other calls wait till it is done
+	 */
+	void open() {
+		try {
+			synchronized(this) {
+				if (mOpened) {
+					return;
+				}
+				mOpened = true;
+				openInner();
+			}
+		} finally {
+			mOpenLatch.countDown();
+		}
+	}
+
+	/**
+	 * wait till the journal is opened
+	 */
+	private void awaitOpen() {
+		boolean interrupted = false;
+		while(true) {
+			try {
+				mOpenLatch.await();
+				break;
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void openInner() {
+		if (mJournalFile.exists()) {
+			try {
+				if (readJournal()) {
+					mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true), "UTF-8"));
+					return;
+				}
+
+				// journal had unfinished edits or a partial line - write a clean one
+				if (compact()) {
+					return;
+				}
+			} catch(IOException e) {
+				Debug.logException(e);
+			}
+		}
+
+		// no journal yet - this is the only time the directory is scanned
+		rebuildFromDirectory();
+		compact();
+	}
+
+	/**
+	 * is there a readable entry with this name
+	 *
+	 * @param name
+	 * @return
+	 */
+	boolean contains(String name) {
+		awaitOpen();
+		synchronized(this) {
+			final Entry entry = mEntries.get(name);
+			return entry != null && entry.readable;
+		}
+	}
+
+	/**
+	 * size of all readable entries
+	 *
+	 * @return
+	 */
+	long size() {
+		awaitOpen();
+		synchronized(this) {
+			return mSize;
+		}
+	}
+
+	/**
+	 * number of entries
+	 *
+	 * @return
+	 */
+	int count() {
+		awaitOpen();
+		synchronized(this) {
+			return mEntries.size();
+		}
+	}
+
+	/**
+	 * an entry was read - moves it to the end of the lru order
+	 *
+	 * @param name
+	 */
+	void recordRead(String name) {
+		awaitOpen();
+		synchronized(this) {
+			if (mEntries.get(name) == null) {
+				return;
+			}
+			++mRedundantOpCount;
+			writeLine(READ + " " + name);
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * an entry is going to be written
+	 *
+	 * @param name
+	 */
+	void recordEdit(String name) {
+		awaitOpen();
+		synchronized(this) {
+			Entry entry = mEntries.get(name);
+			if (entry == null) {
+				entry = new Entry();
+				mEntries.put(name, entry);
+			} else if (entry.readable) {
+				mSize -= entry.size;
+				entry.readable = false;
+			}
+			writeLine(DIRTY + " " + name);
+		}
+	}
+
+	/**
+	 * an entry was written successfully
+	 *
+	 * @param name
+	 * @param size
+	 */
+	void recordCommit(String name, long size) {
+		awaitOpen();
+		synchronized(this) {
+			Entry entry = mEntries.get(name);
+			if (entry == null) {
+				entry = new Entry();
+				mEntries.put(name, entry);
+			} else if (entry.readable) {
+				mSize -= entry.size;
+			}
+			entry.size = size;
+			entry.readable = true;
+			mSize += size;
+			++mRedundantOpCount;
+			writeLine(CLEAN + " " + size + " " + name);
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * an entry was removed (or its write failed)<br/>
+	 * !note: does not delete the file
+	 *
+	 * @param name
+	 */
+	void recordRemove(String name) {
+		awaitOpen();
+		synchronized(this) {
+			final Entry entry = mEntries.remove(name);
+			if (entry == null) {
+				return;
+			}
+			if (entry.readable) {
+				mSize -= entry.size;
+			}
+			++mRedundantOpCount;
+			writeLine(REMOVE + " " + name);
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * remove least recently used entries till size is below or equal to maxSize<br/>
+	 * entries being written are skipped<br/>
+	 * !note: files are not deleted here so the index is not locked while doing so - that is up to the caller
+	 *
+	 * @param maxSize
+	 * @return names of the removed entries
+	 */
+	ArrayList<String> trimToSize(long maxSize) {
+		awaitOpen();
+		final ArrayList<String> victims = new ArrayList<String>();
+		synchronized(this) {
+			if (mSize <= maxSize) {
+				return victims;
+			}
+
+			final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+			while(mSize > maxSize && it.hasNext()) {
+				final Map.Entry<String, Entry> e = it.next();
+				final Entry entry = e.getValue();
+				if (!entry.readable) {
+					continue;
+				}
+				victims.add(e.getKey());
+				it.remove();
+				mSize -= entry.size;
+				++mRedundantOpCount;
+				writeLine(REMOVE + " " + e.getKey());
+			}
+			Debug.logW("file cache above max deleted - new size", mSize + "");
+
+			compactIfNeeded();
+		}
+		return victims;
+	}
+
+	/**
+	 * replay the journal
+	 *
+	 * @return false if the journal needs to be rewritten
+	 * @throws IOException
+	 */
+	private boolean readJournal() throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), "UTF-8"));
+		try {
+			if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+				throw new IOException("unknown file cache journal header");
+			}
+
+			// last line without its line feed was not finished writing - even if it parses
+			final boolean partialLastLine = !endsWithNewLine(mJournalFile);
+
+			int lineCount = 0;
+			String line = reader.readLine();
+			while(line != null) {
+				final String next = reader.readLine();
+				if ((next == null && partialLastLine) || !readJournalLine(line)) {
+
+					// partial line at the end - written when we were killed
+					clearUnfinishedEdits();
+					return false;
+				}
+				++lineCount;
+				line = next;
+			}
+			mRedundantOpCount = lineCount - mEntries.size();
+
+			return !clearUnfinishedEdits();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static boolean endsWithNewLine(File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final long length = raf.length();
+			if (length == 0) {
+				return true;
+			}
+			raf.seek(length - 1);
+			return raf.read() == '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 *
+	 * @param line
+	 * @return false if line could not be parsed
+	 */
+	private boolean readJournalLine(String line) {
+		final int firstSpace = line.indexOf(' ');
+		if (firstSpace == -1) {
+			return false;
+		}
+		final String op = line.substring(0, firstSpace);
+
+		if (CLEAN.equals(op)) {
+			final int secondSpace = line.indexOf(' ', firstSpace + 1);
+			if (secondSpace == -1 || secondSpace == line.length() - 1) {
+				return false;
+			}
+			final long size;
+			try {
+				size = Long.parseLong(line.substring(firstSpace + 1, secondSpace));
+			} catch(NumberFormatException e) {
+				return false;
+			}
+			final String name = line.substring(secondSpace + 1);
+			Entry entry = mEntries.get(name);
+			if (entry == null) {
+				entry = new Entry();
+				mEntries.put(name, entry);
+			} else if (entry.readable) {
+				mSize -= entry.size;
+			}
+			entry.size = size;
+			entry.readable = true;
+			mSize += size;
+			return true;
+		}
+
+		final String name = line.substring(firstSpace + 1);
+		if (name.length() == 0) {
+			return false;
+		}
+		if (DIRTY.equals(op)) {
+			Entry entry = mEntries.get(name);
+			if (entry == null) {
+				entry = new Entry();
+				mEntries.put(name, entry);
+			} else if (entry.readable) {
+				mSize -= entry.size;
+				entry.readable = false;
+			}
+		} else if (REMOVE.equals(op)) {
+			final Entry entry = mEntries.remove(name);
+			if (entry != null && entry.readable) {
+				mSize -= entry.size;
+			}
+		} else if (READ.equals(op)) {
+
+			// access order only
+			mEntries.get(name);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * remove entries which were not finished writing
+	 *
+	 * @return true if there were any
+	 */
+	private boolean clearUnfinishedEdits() {
+		boolean found = false;
+		final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+		while(it.hasNext()) {
+			final Map.Entry<String, Entry> e = it.next();
+			if (!e.getValue().readable) {
+				new File(mDir, e.getKey()).delete();
+				new File(mDir, e.getKey() + PART_SUFFIX).delete();
+				it.remove();
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * build index from the files in the directory - order by modification time
+	 */
+	private void rebuildFromDirectory() {
+		mEntries.clear();
+		mSize = 0;
+
+		final ArrayList<FileModifiedInfo> files = new ArrayList<FileModifiedInfo>();
+		collectFilesRec(mDir, "", files);
+
+		final FileModifiedInfo[] list = files.toArray(new FileModifiedInfo[files.size()]);
+		Arrays.sort(list, new Comparator<FileModifiedInfo>() {
+			public int compare(FileModifiedInfo f1, FileModifiedInfo f2) {
+				return Long.valueOf(f1.modified).compareTo(f2.modified);
+			}
+		});
+		for(FileModifiedInfo info : list) {
+			final Entry entry = new Entry();
+			entry.size = info.size;
+			entry.readable = true;
+			mEntries.put(info.name, entry);
+			mSize += info.size;
+		}
+
+		Debug.logW("file cache index rebuilt - current size", mSize + "");
+	}
+
+	/**
+	 *
+	 * @param dir
+	 * @param prefix
+	 * @param files
+	 */
+	private void collectFilesRec(File dir, String prefix, ArrayList<FileModifiedInfo> files) {
+		final String[] list = dir.list();
+		if (list == null) {
+			return;
+		}
+		for(String file : list) {
+			if (prefix.length() == 0 && (JOURNAL_FILE.equals(file) || JOURNAL_FILE_TMP.equals(file))) {
+				continue;
+			}
+			final File fFile = new File(dir, file);
+			if (fFile.isDirectory()) {
+				collectFilesRec(fFile, prefix + file + "/", files);
+			} else if (file.endsWith(PART_SUFFIX)) {
+				
+				// unfinished write
+				fFile.delete();
+			} else {
+				final FileModifiedInfo info = new FileModifiedInfo();
+				info.name = prefix + file;
+				info.size = fFile.length();
+				info.modified = fFile.lastModified();
+				files.add(info);
+			}
+		}
+	}
+
+	private void compactIfNeeded() {
+		if (mRedundantOpCount >= MIN_REDUNDANT_OPS_TO_COMPACT && mRedundantOpCount >= mEntries.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * write a new journal with only the current entries and replace the old one with it
+	 *
+	 * @return
+	 */
+	private boolean compact() {
+		if (mWriter != null) {
+			try {
+				mWriter.close();
+			} catch(IOException e) {
+				;
+			}
+			mWriter = null;
+		}
+
+		try {
+			final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFileTmp), "UTF-8"));
+			try {
+				writer.write(MAGIC + "\n" + VERSION + "\n");
+				for(Map.Entry<String, Entry> e : mEntries.entrySet()) {
+					if (e.getValue().readable) {
+						writer.write(CLEAN + " " + e.getValue().size + " " + e.getKey() + "\n");
+					} else {
+						writer.write(DIRTY + " " + e.getKey() + "\n");
+					}
+				}
+			} finally {
+				writer.close();
+			}
+			if (!mJournalFileTmp.renameTo(mJournalFile)) {
+				throw new IOException("could not replace file cache journal");
+			}
+			mRedundantOpCount = 0;
+
+			mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true), "UTF-8"));
+			return true;
+		} catch(IOException e) {
+			Debug.logException(e);
+			return false;
+		}
+	}
+
+	/**
+	 *
+	 * @param line
+	 */
+	private void writeLine(String line) {
+		if (mWriter == null) {
+			return;
+		}
+		try {
+			mWriter.write(line);
+			mWriter.write('\n');
+			mWriter.flush();
+		} catch(IOException e) {
+			Debug.logException(e);
+		}
+	}
+
+	private static class Entry {
+		long size;
+		boolean readable;
+	}
+
+	private static class FileModifiedInfo {
+		String name;
+		long size;
+		long modified;
+	}
+}
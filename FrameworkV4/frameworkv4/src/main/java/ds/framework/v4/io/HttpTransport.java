@@ -0,0 +1,356 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package ds.framework.v4.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * opens and releases http connections so the underlying sockets are kept alive and reused<br/>
+ * HttpURLConnection pools a connection when its response body is read to the end and closed - and drops it
+ * on disconnect() - so never disconnect after a normal request, close the stream from getInputStream instead<br/>
+ * requests gzip and unpacks gzipped responses<br/>
+ * <br/>
+ * keeps per host statistics - as HttpURLConnection does not tell if a socket was reused these are estimates:
+ * a request counts as reused if a connection to the same host was returned to the pool within the keep-alive time
+ */
+public class HttpTransport {
+
+	// how long the platform keeps an idle connection (okhttp's default on android)
+	private static final long KEEP_ALIVE = 5 * 60 * 1000;
+
+	// read at most this many unread bytes on close to let the connection go back to the pool
+	private static final int MAX_DRAIN = 8 * 1024;
+
+	final private static HashMap<String, HostStats> sStats = new HashMap<String, HostStats>();
+
+	static {
+		if (System.getProperty("http.keepAlive") == null) {
+			System.setProperty("http.keepAlive", "true");
+		}
+	}
+
+	/**
+	 * maximum number of idle connections kept per host
+	 *
+	 * @param max
+	 */
+	public static void setMaxIdleConnections(int max) {
+		System.setProperty("http.maxConnections", String.valueOf(Math.max(1, max)));
+	}
+
+	/**
+	 * open a connection asking for gzip<br/>
+	 * !note: read the response with getInputStream/getErrorStream and close it
+	 *
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	public static HttpURLConnection open(URL url) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestProperty("Accept-Encoding", "gzip");
+
+		final HostStats stats = getOrCreateStats(url.getHost());
+		synchronized(stats) {
+			stats.onRequest();
+		}
+		return conn;
+	}
+
+	/**
+	 * response body - unpacked if gzipped<br/>
+	 * closing it returns the connection to the pool if the body was read to the end
+	 *
+	 * @param conn
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream getInputStream(HttpURLConnection conn) throws IOException {
+		return wrap(conn, conn.getInputStream());
+	}
+
+	/**
+	 * error response body - unpacked if gzipped
+	 *
+	 * @param conn
+	 * @return null if there is none
+	 * @throws IOException
+	 */
+	public static InputStream getErrorStream(HttpURLConnection conn) throws IOException {
+		final InputStream stream = conn.getErrorStream();
+		return stream == null ? null : wrap(conn, stream);
+	}
+
+	/**
+	 *
+	 * @param host
+	 * @return null if there was no request to the host
+	 */
+	public static HostStats getStats(String host) {
+		synchronized(sStats) {
+			return sStats.get(host);
+		}
+	}
+
+	/**
+	 * statistics for all hosts
+	 *
+	 * @return
+	 */
+	public static HashMap<String, HostStats> getStats() {
+		synchronized(sStats) {
+			return new HashMap<String, HostStats>(sStats);
+		}
+	}
+
+	/**
+	 *
+	 */
+	public static void resetStats() {
+		synchronized(sStats) {
+			sStats.clear();
+		}
+	}
+
+	/**
+	 *
+	 * @param conn
+	 * @param stream
+	 * @return
+	 * @throws IOException
+	 */
+	private static InputStream wrap(HttpURLConnection conn, InputStream stream) throws IOException {
+		final boolean keepAlive = !"close".equalsIgnoreCase(conn.getHeaderField("Connection"));
+		stream = new ReleasingInputStream(stream, getOrCreateStats(conn.getURL().getHost()), keepAlive);
+		if ("gzip".equalsIgnoreCase(conn.getContentEncoding()) && hasBody(conn)) {
+
+			// GZIPInputStream reads the header right away - it throws on an empty body
+			final PushbackInputStream pushback = new PushbackInputStream(stream, 1);
+			final int first = pushback.read();
+			if (first == -1) {
+				return pushback;
+			}
+			pushback.unread(first);
+			stream = new GZIPInputStream(pushback);
+		}
+		return stream;
+	}
+
+	/**
+	 * can the response have a body at all
+	 *
+	 * @param conn
+	 * @return
+	 * @throws IOException
+	 */
+	private static boolean hasBody(HttpURLConnection conn) throws IOException {
+		if ("HEAD".equals(conn.getRequestMethod())) {
+			return false;
+		}
+		final int code = conn.getResponseCode();
+		if ((code >= 100 && code < 200) || code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			return false;
+		}
+		return conn.getContentLength() != 0;
+	}
+
+	/**
+	 *
+	 * @param host
+	 * @return
+	 */
+	private static HostStats getOrCreateStats(String host) {
+		synchronized(sStats) {
+			HostStats stats = sStats.get(host);
+			if (stats == null) {
+				stats = new HostStats(host);
+				sStats.put(host, stats);
+			}
+			return stats;
+		}
+	}
+
+	/**
+	 * @class HostStats
+	 */
+	public static class HostStats {
+		final private String mHost;
+		final private ArrayDeque<Long> mIdleSince = new ArrayDeque<Long>();
+
+		private int mRequests;
+		private int mReused;
+		private int mPooled;
+		private int mDropped;
+
+		HostStats(String host) {
+			mHost = host;
+		}
+
+		public String getHost() {
+			return mHost;
+		}
+
+		public synchronized int getRequestCount() {
+			return mRequests;
+		}
+
+		/**
+		 * requests which (probably) went through an already open connection
+		 *
+		 * @return
+		 */
+		public synchronized int getReuseCount() {
+			return mReused;
+		}
+
+		/**
+		 * responses which were read to the end so their connection could go back to the pool
+		 *
+		 * @return
+		 */
+		public synchronized int getPooledCount() {
+			return mPooled;
+		}
+
+		/**
+		 * responses closed before their end or with 'Connection: close' - their connection was dropped
+		 *
+		 * @return
+		 */
+		public synchronized int getDroppedCount() {
+			return mDropped;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return mHost + "[requests=" + mRequests + ",reused=" + mReused + ",pooled=" + mPooled +
+					",dropped=" + mDropped + "]";
+		}
+
+		/**
+		 * !note: call in synchronized(this)
+		 */
+		void onRequest() {
+			++mRequests;
+
+			final long now = System.currentTimeMillis();
+			while(!mIdleSince.isEmpty() && now - mIdleSince.peekFirst() > KEEP_ALIVE) {
+				mIdleSince.pollFirst();
+			}
+			if (!mIdleSince.isEmpty()) {
+
+				// take the most recently released one
+				mIdleSince.pollLast();
+				++mReused;
+			}
+		}
+
+		/**
+		 * !note: call in synchronized(this)
+		 *
+		 * @param pooled
+		 */
+		void onRelease(boolean pooled) {
+			if (pooled) {
+				++mPooled;
+				mIdleSince.addLast(System.currentTimeMillis());
+			} else {
+				++mDropped;
+			}
+		}
+	}
+
+	/**
+	 * @class ReleasingInputStream
+	 *
+	 * finishes reading a nearly read response on close so the connection can be reused
+	 */
+	private static class ReleasingInputStream extends FilterInputStream {
+		final private HostStats mStats;
+		final private boolean mKeepAlive;
+		private boolean mEnded;
+		private boolean mClosed;
+
+		ReleasingInputStream(InputStream stream, HostStats stats, boolean keepAlive) {
+			super(stream);
+			mStats = stats;
+			mKeepAlive = keepAlive;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = in.read();
+			if (b == -1) {
+				mEnded = true;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			final int read = in.read(buffer, offset, count);
+			if (read == -1) {
+				mEnded = true;
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			try {
+				if (!mEnded) {
+					drain();
+				}
+			} catch(IOException e) {
+				;
+			} finally {
+				synchronized(mStats) {
+					mStats.onRelease(mEnded && mKeepAlive);
+				}
+				in.close();
+			}
+		}
+
+		/**
+		 *
+		 * @throws IOException
+		 */
+		private void drain() throws IOException {
+			final byte[] buffer = new byte[1024];
+			int drained = 0;
+			while(drained < MAX_DRAIN) {
+				final int read = read(buffer, 0, buffer.length);
+				if (read == -1) {
+					return;
+				}
+				drained += read;
+			}
+		}
+	}
+}
@@ -16,6 +16,8 @@
 package ds.framework.v4.io;
 
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import org.json.JSONArray;
@@ -275,7 +277,7 @@ public class HttpURLRequest {
 
         try {
             final String finalUrl = createFullUrl();
-            mHttpURLConnection = (HttpURLConnection) new URL(finalUrl).openConnection();
+            mHttpURLConnection = HttpTransport.open(new URL(finalUrl));
             mHttpURLConnection.setRequestMethod(modeString);
             mHttpURLConnection.setConnectTimeout(mConnectionTimeout);
             mHttpURLConnection.setReadTimeout(mReadTimeout);
@@ -316,33 +318,27 @@ public class HttpURLRequest {
     }
 
     /**
+     * read the response<br/>
+     * the connection is given back to the pool (see HttpTransport) - not disconnected
      *
      * @param nullIfNotOK
      * @return
      * @throws IOException
      */
     public String getResponse(boolean nullIfNotOK) throws IOException {
+        InputStream is = null;
         try {
             if (nullIfNotOK && getStatusCode() != 200) {
                 return null;
             }
 
-            // read cookies
-            Map<String, List<String>> headerFields = mHttpURLConnection.getHeaderFields();
-            List<String> cookiesHeader = headerFields.get("Set-Cookie");
-
-            if (cookiesHeader != null) {
-                for (String cookie : cookiesHeader) {
-                    sCookieManager.getCookieStore().add(null, HttpCookie.parse(cookie).get(0));
-                }
-            }
+            readCookies();
 
             // read response
-            InputStream is = null;
             try {
-                is = mHttpURLConnection.getInputStream();
+                is = HttpTransport.getInputStream(mHttpURLConnection);
             } catch(IOException e) {
-				is = mHttpURLConnection.getErrorStream();
+				is = HttpTransport.getErrorStream(mHttpURLConnection);
 			}
             BufferedReader rd = new BufferedReader(new InputStreamReader(is));
             String line;
@@ -357,11 +353,82 @@ public class HttpURLRequest {
         } catch(IOException e) {
             throw (e);
         } finally {
-            if (mHttpURLConnection != null) {
-                mHttpURLConnection.disconnect();
-                mHttpURLConnection = null;
+            releaseConnection(is);
+        }
+    }
+
+    /**
+     * let 'handler' process the response body as it arrives - nothing is collected in memory<br/>
+     * the connection is given back to the pool when the handler returns
+     *
+     * @param handler
+     * @param nullIfNotOK
+     * @return what the handler returned or null if status is not OK and nullIfNotOK is true
+     * @throws IOException
+     */
+    public <R> R getResponse(ResponseHandler<R> handler, boolean nullIfNotOK) throws IOException {
+        InputStream is = null;
+        try {
+            final int statusCode = getStatusCode();
+            if (nullIfNotOK && statusCode != 200) {
+                return null;
+            }
+
+            readCookies();
+
+            try {
+                is = HttpTransport.getInputStream(mHttpURLConnection);
+            } catch(IOException e) {
+                is = HttpTransport.getErrorStream(mHttpURLConnection);
+            }
+            if (is == null) {
+                return null;
+            }
+            return handler.handleResponse(is, statusCode);
+        } finally {
+            releaseConnection(is);
+        }
+    }
+
+    /**
+     *
+     * @throws IOException
+     */
+    private void readCookies() throws IOException {
+        Map<String, List<String>> headerFields = mHttpURLConnection.getHeaderFields();
+        List<String> cookiesHeader = headerFields.get("Set-Cookie");
+
+        if (cookiesHeader != null) {
+            for (String cookie : cookiesHeader) {
+                sCookieManager.getCookieStore().add(null, HttpCookie.parse(cookie).get(0));
+            }
+        }
+    }
+
+    /**
+     * close the response so the connection can be reused
+     *
+     * @param is - the response stream if it was opened
+     */
+    protected void releaseConnection(InputStream is) {
+        if (mHttpURLConnection == null) {
+            return;
+        }
+        try {
+            if (is == null) {
+                try {
+                    is = HttpTransport.getInputStream(mHttpURLConnection);
+                } catch(IOException e) {
+                    is = HttpTransport.getErrorStream(mHttpURLConnection);
+                }
+            }
+            if (is != null) {
+                is.close();
             }
+        } catch(IOException e) {
+            mHttpURLConnection.disconnect();
         }
+        mHttpURLConnection = null;
     }
 
     private String getModeString() {
@@ -608,6 +675,119 @@ public class HttpURLRequest {
 		}
 	}
 
+    /**
+     * parse the response with a pull parser - records can be handled one by one while they arrive<br/>
+     * use readJSONObject / readJSONArray to get a single record as JSONObject
+     *
+     * @param handler
+     * @param nullIfNotOk
+     * @return what the handler returned or null if status is not OK and nullIfNotOk is true
+     * @throws IOException
+     */
+	public <R> R getJSONResponse(final JSONResponseHandler<R> handler, boolean nullIfNotOk) throws IOException {
+		return getResponse(new ResponseHandler<R>() {
+
+			@Override
+			public R handleResponse(InputStream stream, int statusCode) throws IOException {
+				final JsonReader reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+				try {
+					return handler.handleJSON(reader, statusCode);
+				} catch(IllegalStateException e) {
+					
+					// JsonReader throws this on unexpected tokens
+					throw new IOException(e.getMessage());
+				} finally {
+					try {
+						reader.close();
+					} catch(IOException e) {
+						;
+					}
+				}
+			}
+		}, nullIfNotOk);
+	}
+
+	/**
+	 * read the next object from 'reader' into a JSONObject
+	 *
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	public static JSONObject readJSONObject(JsonReader reader) throws IOException {
+		final JSONObject object = new JSONObject();
+		reader.beginObject();
+		try {
+			while(reader.hasNext()) {
+				final String name = reader.nextName();
+				object.put(name, readJSONValue(reader));
+			}
+		} catch(JSONException e) {
+			throw new IOException(e.getMessage());
+		}
+		reader.endObject();
+		return object;
+	}
+
+	/**
+	 * read the next array from 'reader' into a JSONArray
+	 *
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	public static JSONArray readJSONArray(JsonReader reader) throws IOException {
+		final JSONArray array = new JSONArray();
+		reader.beginArray();
+		while(reader.hasNext()) {
+			array.put(readJSONValue(reader));
+		}
+		reader.endArray();
+		return array;
+	}
+
+	/**
+	 *
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	private static Object readJSONValue(JsonReader reader) throws IOException {
+		final JsonToken token = reader.peek();
+		switch(token) {
+			case BEGIN_OBJECT:
+				return readJSONObject(reader);
+
+			case BEGIN_ARRAY:
+				return readJSONArray(reader);
+
+			case BOOLEAN:
+				return reader.nextBoolean();
+
+			case NULL:
+				reader.nextNull();
+				return JSONObject.NULL;
+
+			case NUMBER:
+				final String number = reader.nextString();
+				if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+					try {
+						final long value = Long.parseLong(number);
+						if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+							return (int) value;
+						}
+						return value;
+					} catch(NumberFormatException e) {
+						;
+					}
+				}
+				return Double.parseDouble(number);
+
+			default:
+				return reader.nextString();
+		}
+	}
+
     /**
      *
      * @return
@@ -693,6 +873,38 @@ public class HttpURLRequest {
         }
     }
 	
+	/**
+	 * @class ResponseHandler
+	 */
+	public interface ResponseHandler<R> {
+		
+		/**
+		 * !note: the stream is closed after this returns
+		 * 
+		 * @param stream
+		 * @param statusCode
+		 * @return
+		 * @throws IOException
+		 */
+		public R handleResponse(InputStream stream, int statusCode) throws IOException;
+	}
+	
+	/**
+	 * @class JSONResponseHandler
+	 */
+	public interface JSONResponseHandler<R> {
+		
+		/**
+		 * !note: the reader is closed after this returns
+		 * 
+		 * @param reader
+		 * @param statusCode
+		 * @return
+		 * @throws IOException
+		 */
+		public R handleJSON(JsonReader reader, int statusCode) throws IOException;
+	}
+	
 	public static class DebugLogConfig {
 		 
 	    static DalvikLogHandler activeHandler;
@@ -16,25 +16,65 @@
 
 package ds.framework.v4.io;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.net.Uri;
 import android.support.v4.util.LruCache;
 
 import ds.framework.v4.Global;
+import ds.framework.v4.common.BitmapPool;
 import ds.framework.v4.common.Bitmaps;
 import ds.framework.v4.common.Debug;
 import ds.framework.v4.common.Files;
+import ds.framework.v4.widget.LaizyImageView;
 
 public class ImageLoader extends LaizyLoader<ImageLoader.ImageInfo, Bitmap> {
 
+	private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+
 	private static ImageFileCache sFileCache;
     private static LruCache<String, Bitmap> sBitmapCache;
+	private static BitmapPool sBitmapPool;
+	final private static WeakHashMap<Bitmap, BitmapRef> sBitmapRefs = new WeakHashMap<Bitmap, BitmapRef>();
+
+	final private static KeyLocks sImageLocks = new KeyLocks();
+	final private static HashMap<String, SourceDownload> sSourceDownloads = new HashMap<String, SourceDownload>();
+	private static Semaphore sDownloadPermits = new Semaphore(DEFAULT_MAX_CONCURRENT_DOWNLOADS, true);
+	private static boolean sStoreOriginals = true;
+
+	/**
+	 * set how many images may be downloaded at the same time (for all ImageLoaders)<br/>
+	 * this is separate from the number of loader threads (see setMaxNumberOfThreads) which also
+	 * covers cache reads and decoding
+	 *
+	 * @param max
+	 */
+	public static void setMaxConcurrentDownloads(int max) {
+		sDownloadPermits = new Semaphore(Math.max(1, max), true);
+	}
+	
+	/**
+	 * store downloaded images in the file cache as they arrived from the net (default)<br/>
+	 * the bytes are written into the cache while they are read and every size is decoded from that file<br/>
+	 * if false every decoded size is re-compressed (png) and stored in its own file
+	 * 
+	 * @param storeOriginals
+	 */
+	public static void setStoreOriginals(boolean storeOriginals) {
+		sStoreOriginals = storeOriginals;
+	}
 	
 	/**
 	 * get an ImageLoader singleton<br/>
@@ -51,17 +91,96 @@ public class ImageLoader extends LaizyLoader<ImageLoader.ImageInfo, Bitmap> {
 			sFileCache = new ImageFileCache(context, imagedir, filemaxsize);
 		}
         if (sBitmapCache == null) {
+            sBitmapPool = new BitmapPool(capacity * 1024L / 4);
             sBitmapCache = new LruCache<String, Bitmap>(capacity) {
 
                 @Override
                 protected int sizeOf(String key, Bitmap bitmap) {
-                    return bitmap.getByteCount() / 1024;
+                    return BitmapPool.getSize(bitmap) / 1024;
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                    if (oldValue != newValue) {
+                        onRemovedFromBitmapCache(oldValue);
+                    }
                 }
             };
         }
 		return new ImageLoader();
 	}
 	
+	/**
+	 * pool of bitmaps which fell out of the memory cache and are not shown - decoding reuses these
+	 * 
+	 * @return null before the first getInstance
+	 */
+	public static BitmapPool getBitmapPool() {
+		return sBitmapPool;
+	}
+	
+	/**
+	 * tell the loader that a bitmap is being shown<br/>
+	 * a bitmap goes to the pool for reuse only after it left the memory cache and every acquire was released<br/>
+	 * bitmaps which were never acquired are never reused
+	 * 
+	 * @param bmp
+	 */
+	public static void acquireBitmap(Bitmap bmp) {
+		synchronized(sBitmapRefs) {
+			BitmapRef ref = sBitmapRefs.get(bmp);
+			if (ref == null) {
+				ref = new BitmapRef();
+				sBitmapRefs.put(bmp, ref);
+			}
+			++ref.views;
+		}
+	}
+	
+	/**
+	 * tell the loader that a bitmap acquired with acquireBitmap is not shown any more
+	 * 
+	 * @param bmp
+	 */
+	public static void releaseBitmap(Bitmap bmp) {
+		synchronized(sBitmapRefs) {
+			final BitmapRef ref = sBitmapRefs.get(bmp);
+			if (ref == null || ref.views == 0) {
+				return;
+			}
+			if (--ref.views == 0 && ref.evicted && !ref.pinned) {
+				sBitmapRefs.remove(bmp);
+				sBitmapPool.put(bmp);
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @param bmp
+	 */
+	private static void onRemovedFromBitmapCache(Bitmap bmp) {
+		synchronized(sBitmapRefs) {
+			final BitmapRef ref = sBitmapRefs.get(bmp);
+			if (ref == null) {
+				
+				// never shown - someone may still be holding it
+				return;
+			}
+			if (ref.pinned) {
+				
+				// given to someone who does not release it
+				return;
+			}
+			if (ref.views == 0) {
+				sBitmapRefs.remove(bmp);
+				sBitmapPool.put(bmp);
+			} else {
+				ref.evicted = true;
+			}
+		}
+	}
+	
 	/**
 	 * get bitmap from cache
 	 * 
@@ -95,19 +214,32 @@ if (bmp != null) {
      * @return
      */
     public static Bitmap getFromFileCache(ImageInfo info) {
-        byte[] bmpBytes = sFileCache.get(info.prefix + info.url);
-        if (bmpBytes == null || bmpBytes.length == 0) {
-            Point max = new Point();
-            ImageLoader.parsePrefix(info.prefix, max);
-            bmpBytes = sFileCache.get(info.url, max.x, max.y);
+        Bitmap bmp = null;
+        if (sStoreOriginals) {
+
+            // decode the size needed right from the original
+            bmp = decodeOriginalFromFileCache(info);
+        }
 
+        if (bmp == null) {
+            byte[] bmpBytes = sFileCache.get(info.prefix + info.url);
             if (bmpBytes == null || bmpBytes.length == 0) {
-                return null;
+                if (sStoreOriginals) {
+                    return null;
+                }
+
+                Point max = new Point();
+                ImageLoader.parsePrefix(info.prefix, max);
+                bmpBytes = sFileCache.get(info.url, max.x, max.y);
+
+                if (bmpBytes == null || bmpBytes.length == 0) {
+                    return null;
+                }
+                sFileCache.put(info.prefix + info.url, bmpBytes);
             }
-            sFileCache.put(info.prefix + info.url, bmpBytes);
-        }
 
-        Bitmap bmp = Bitmaps.createBitmap(bmpBytes);
+            bmp = Bitmaps.createBitmap(bmpBytes);
+        }
 
 		if (bmp != null) {
 			sBitmapCache.put(info.prefix + info.url, bmp);
@@ -117,7 +249,28 @@ Debug.logD("ImageLoader", "loaded from file: " + info.prefix + " " + info.url);
         return bmp;
     }
 
-	
+    /**
+     *
+     * @param info
+     * @return
+     */
+    private static Bitmap decodeOriginalFromFileCache(ImageInfo info) {
+        final File file = sFileCache.getFile(info.url);
+        if (file == null) {
+            return null;
+        }
+
+        Point max = new Point(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        parsePrefix(info.prefix, max);
+        final Bitmap bmp = Bitmaps.getThumbnail(file.getPath(), max.x, max.y, sBitmapPool);
+        if (bmp == null) {
+
+            // broken or missing file - drop the entry so the image is downloaded again
+            sFileCache.remove(info.url);
+        }
+        return bmp;
+    }
+
 	/**
 	 * get uri for cache file
 	 * 
@@ -131,8 +284,33 @@ Debug.logD("ImageLoader", "loaded from file: " + info.prefix + " " + info.url);
 		return sFileCache.getUri(info.prefix + info.url);
 	}
 	
+	/**
+	 * a delivered bitmap is held till the callback had it - a LaizyImageView releases it when its delivery ran,
+	 * any other callback may keep it so it is never reused
+	 */
+	@Override
+	protected void onDeliver(Callback<ImageInfo, Bitmap> callback, Bitmap result) {
+		synchronized(sBitmapRefs) {
+			BitmapRef ref = sBitmapRefs.get(result);
+			if (ref == null) {
+				ref = new BitmapRef();
+				sBitmapRefs.put(result, ref);
+			}
+			if (callback instanceof LaizyImageView) {
+				++ref.views;
+			} else {
+				ref.pinned = true;
+			}
+		}
+	}
+	
 	@Override
 	public boolean loadInBackground(QueueItem item) {
+		if (item.isCancelled()) {
+			
+			// nobody is waiting for it anymore
+			return true;
+		}
 
 		final Bitmap bmp = loadImage(item.item);
 		if (bmp != null) {
@@ -156,7 +334,9 @@ Debug.logNativeHeapAllocatedSize();
 	
 	/**
 	 * call from thread to load image (either from file or net) in background<br/>
-	 * most steps are synchronized except for the real downloading
+	 * loads for the same prefix and url are serialized, others run in parallel<br/>
+	 * the original image is downloaded only once for all prefixes requested at the same time<br/>
+	 * the number of simultaneous downloads is limited (see setMaxConcurrentDownloads)
 	 * 
 	 * @param info
 	 * @return
@@ -166,68 +346,194 @@ Debug.logNativeHeapAllocatedSize();
             info.url = "http://" + info.url;
         }
 
-        try {
-
-            synchronized (ImageLoader.class) {
+        final String key = info.prefix + info.url;
 
-                if (info.cacheType == ImageInfo.CACHE_TYPE_FULL) {
+        // only one thread may work on the same image - others are free to go
+        sImageLocks.lock(key);
+        try {
+            if (info.cacheType != ImageInfo.CACHE_TYPE_NONE) {
 
-                    // from file cache
-                    final Bitmap bmp;
-                    bmp = getFromFileCache(info);
-                    if (bmp != null) {
-                        return bmp;
-                    }
+                // another thread may have loaded this while we were waiting for the lock
+                final Bitmap bmp = sBitmapCache.get(key);
+                if (bmp != null) {
+                    return bmp;
                 }
+            }
 
-                final Bitmap bmp;
-
-                // from url
-                Point max = new Point(Integer.MAX_VALUE, Integer.MAX_VALUE);
-                parsePrefix(info.prefix, max);
-
-Debug.logD("ImageLoader", "downloading: " + info.url);
+            if (info.cacheType == ImageInfo.CACHE_TYPE_FULL) {
 
-                if (max.x == Integer.MAX_VALUE) {
-                    bmp = Bitmaps.downloadImage(new URL(info.url));
-                } else {
-                    bmp = Bitmaps.getResizedImageFromHttpStream(new URL(info.url), max.x, max.y);
+                // from file cache
+                final Bitmap bmp;
+                bmp = getFromFileCache(info);
+                if (bmp != null) {
+                    return bmp;
                 }
-                if (bmp == null) {
+            }
 
-                    // not found
-                    return null;
-                }
+            // from url
+            final Bitmap bmp = loadFromUrl(info);
+            if (bmp == null) {
+
+                // not found
+                return null;
+            }
 
-                if (info.cacheType != ImageInfo.CACHE_TYPE_NONE) {
+            if (info.cacheType != ImageInfo.CACHE_TYPE_NONE) {
 
-                    // put in bitmap cache
-                    sBitmapCache.put(info.prefix + info.url, bmp);
+                // put in bitmap cache
+                sBitmapCache.put(key, bmp);
 
-                    if (info.cacheType != ImageInfo.CACHE_TYPE_MEMORY) {
+                if (info.cacheType != ImageInfo.CACHE_TYPE_MEMORY && !sStoreOriginals) {
 
-                        // put in file cache (in another thread - so we can give this bitmap right away
-                        new Thread() {
+                    // put in file cache (in another thread - so we can give this bitmap right away
+                    new Thread() {
 
-                            @Override
-                            public void run() {
-                                sFileCache.put(info.prefix + info.url, Bitmaps.compressBitmapToByteArray(bmp));
-                            }
-                        }.start();
-                    }
+                        @Override
+                        public void run() {
+                            sFileCache.put(key, Bitmaps.compressBitmapToByteArray(bmp));
+                        }
+                    }.start();
                 }
-
-                return bmp;
             }
 
+            return bmp;
         } catch(OutOfMemoryError e) {
             Debug.logException(e);
         } catch(Throwable e) {
             Debug.logException(e);
+        } finally {
+            sImageLocks.unlock(key);
         }
         return null;
 	}
 	
+	/**
+	 * get image from the net<br/>
+	 * simultaneous requests for the same url (with different prefixes) share one download<br/>
+	 * when storing originals the downloaded bytes go into the file cache and the image is decoded from there
+	 *
+	 * @param info
+	 * @return
+	 */
+	private static Bitmap loadFromUrl(ImageInfo info) {
+		final String url = info.url;
+		SourceDownload download;
+		boolean owner = false;
+		synchronized(sSourceDownloads) {
+			download = sSourceDownloads.get(url);
+			if (download == null) {
+				download = new SourceDownload();
+				sSourceDownloads.put(url, download);
+				owner = true;
+			}
+		}
+
+		if (owner) {
+Debug.logD("ImageLoader", "downloading: " + url);
+
+			final boolean intoFileCache = sStoreOriginals && info.cacheType == ImageInfo.CACHE_TYPE_FULL && sFileCache.isAvailable();
+			byte[] bytes = null;
+			boolean inFileCache = false;
+			final Semaphore permits = sDownloadPermits;
+			permits.acquireUninterruptibly();
+			try {
+				if (intoFileCache) {
+					inFileCache = downloadIntoFileCache(url);
+				} else {
+
+					// not streamed like Bitmaps.getResizedImageFromHttpStream - requests waiting for this download
+					// decode their own sizes from the same bytes
+					bytes = Bitmaps.downloadImageAsByteArray(new URL(url));
+				}
+			} catch(OutOfMemoryError e) {
+				Debug.logException(e);
+			} catch(Throwable e) {
+				Debug.logException(e);
+			} finally {
+				permits.release();
+
+				synchronized(sSourceDownloads) {
+					sSourceDownloads.remove(url);
+				}
+				download.setResult(bytes, inFileCache);
+			}
+		} else {
+Debug.logD("ImageLoader", "waiting for download: " + url);
+			if (!download.waitForResult()) {
+				return null;
+			}
+		}
+
+		if (download.isInFileCache()) {
+			return decodeOriginalFromFileCache(info);
+		}
+
+		final byte[] source = download.getBytes();
+		if (source == null || source.length == 0) {
+			return null;
+		}
+
+		Point max = new Point(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		parsePrefix(info.prefix, max);
+
+		if (max.x == Integer.MAX_VALUE) {
+			return Bitmaps.createBitmap(source, sBitmapPool);
+		} else {
+			return Bitmaps.createThumbnailApprox(source, max.x, max.y, sBitmapPool);
+		}
+	}
+
+	/**
+	 * download image from 'url' into the file cache as it is - no decoding and re-compressing<br/>
+	 * the net stream is copied into the cache entry while it is read to check the image's bounds
+	 *
+	 * @param url
+	 * @return true if the image is in the file cache
+	 * @throws IOException
+	 */
+	private static boolean downloadIntoFileCache(String url) throws IOException {
+		AbsFileCache<byte[]>.Editor editor = sFileCache.edit(url);
+		if (editor == null) {
+
+			// already there
+			if (sFileCache.has(url)) {
+				return true;
+			}
+
+			// its file was gone (has() drops such an entry) - try once more
+			editor = sFileCache.edit(url);
+			if (editor == null) {
+				return sFileCache.has(url);
+			}
+		}
+
+		InputStream stream = null;
+		try {
+			stream = Bitmaps.getFlushedHttpStream(new URL(url));
+			final TeeInputStream tee = new TeeInputStream(stream, editor.getOutputStream());
+
+			// no need to keep anything which is not an image
+			final BitmapFactory.Options o = new BitmapFactory.Options();
+			o.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(tee, null, o);
+			if (o.outWidth <= 0 || o.outHeight <= 0) {
+				return false;
+			}
+
+			tee.drain();
+			editor.commit();
+			return true;
+		} finally {
+
+			// does nothing if committed
+			editor.abort();
+
+			if (stream != null) {
+				stream.close();
+			}
+		}
+	}
+
 	/**
 	 * encode url - just change // -s
 	 * 
@@ -287,7 +593,7 @@ Debug.logD("ImageLoader", "downloading: " + info.url);
 		}
 
 		@Override
-		synchronized protected byte[] getObjectFromStream(FileInputStream inStream) {
+		protected byte[] getObjectFromStream(FileInputStream inStream) {
 			try {
 				return Files.getFileAsByteArray(inStream);
 			} catch(Throwable e) {
@@ -298,17 +604,60 @@ Debug.logD("ImageLoader", "downloading: " + info.url);
 		}
 
 		@Override
-		synchronized protected void putObjectIntoStream(byte[] value, FileOutputStream outStream) {
+		protected void putObjectIntoStream(byte[] value, FileOutputStream outStream) throws IOException {
 			if (value == null) {
 				return;
 			}
-			try {
-				outStream.write(value);
-			} catch(OutOfMemoryError e) {
-				Debug.logException(e);
-			} catch(Throwable e) {
-				Debug.logException(e);
+			outStream.write(value);
+		}
+	}
+	
+	private static class BitmapRef {
+		
+		// acquires and deliveries not yet released
+		int views;
+		boolean evicted;
+		
+		// handed out to someone who never releases it
+		boolean pinned;
+	}
+	
+	/**
+	 * class SourceDownload - an in-flight download of an original image
+	 */
+	private static class SourceDownload {
+		private byte[] mBytes;
+		private boolean mInFileCache;
+		private boolean mFinished;
+
+		synchronized void setResult(byte[] bytes, boolean inFileCache) {
+			mBytes = bytes;
+			mInFileCache = inFileCache;
+			mFinished = true;
+			notifyAll();
+		}
+
+		/**
+		 *
+		 * @return false if interrupted while waiting
+		 */
+		synchronized boolean waitForResult() {
+			while(!mFinished) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					return false;
+				}
 			}
+			return true;
+		}
+
+		synchronized byte[] getBytes() {
+			return mBytes;
+		}
+
+		synchronized boolean isInFileCache() {
+			return mInFileCache;
 		}
 	}
 	
@@ -0,0 +1,99 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package ds.framework.v4.io;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * per key mutual exclusion<br/>
+ * locks are reference counted and removed when nobody holds or waits for them<br/>
+ * the lock table is striped so threads working on different keys do not contend on one monitor
+ */
+public class KeyLocks {
+
+	private static final int DEFAULT_STRIPES = 16;
+
+	final private HashMap<String, KeyLock>[] mStripes;
+
+	public KeyLocks() {
+		this(DEFAULT_STRIPES);
+	}
+
+	@SuppressWarnings("unchecked")
+	public KeyLocks(int stripes) {
+		mStripes = new HashMap[stripes];
+		for(int i = 0; i < stripes; ++i) {
+			mStripes[i] = new HashMap<String, KeyLock>();
+		}
+	}
+
+	/**
+	 * acquire the lock for 'key' - blocks while another thread holds it<br/>
+	 * !note: always call unlock(key) in a finally block
+	 *
+	 * @param key
+	 */
+	public void lock(String key) {
+		final HashMap<String, KeyLock> stripe = getStripe(key);
+		KeyLock lock;
+		synchronized(stripe) {
+			lock = stripe.get(key);
+			if (lock == null) {
+				lock = new KeyLock();
+				stripe.put(key, lock);
+			}
+			++lock.count;
+		}
+		lock.lock.lock();
+	}
+
+	/**
+	 * release the lock for 'key'
+	 *
+	 * @param key
+	 */
+	public void unlock(String key) {
+		final HashMap<String, KeyLock> stripe = getStripe(key);
+		synchronized(stripe) {
+			final KeyLock lock = stripe.get(key);
+			if (lock == null) {
+				throw new IllegalMonitorStateException("not locked: " + key);
+			}
+			lock.lock.unlock();
+			if (--lock.count == 0) {
+				stripe.remove(key);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return
+	 */
+	private HashMap<String, KeyLock> getStripe(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return mStripes[(h & 0x7fffffff) % mStripes.length];
+	}
+
+	private static class KeyLock {
+		final ReentrantLock lock = new ReentrantLock();
+		int count;
+	}
+}
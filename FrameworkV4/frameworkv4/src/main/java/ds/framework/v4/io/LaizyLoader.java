@@ -18,54 +18,167 @@ package ds.framework.v4.io;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import ds.framework.v4.Global;
 import ds.framework.v4.common.Debug;
+import ds.framework.v4.io.ConnectionChecker.ConnectionChangedListener;
 
 import android.os.Handler;
-import android.util.SparseArray;
 
 abstract public class LaizyLoader<S, T> extends Handler {
 	
-	private static final int MAX_NUMBER_OF_THREADS = 5;
+	private static final int DEFAULT_MAX_NUMBER_OF_THREADS = 5;
 	private static final int MAX_NUMBER_OF_RETRIES = 3;
 	
-	final private ArrayList<S> mQueueOrder = new ArrayList<S>();
-	final private HashMap<S, QueueItem> mQueue = new LinkedHashMap<S, QueueItem>();
-	final private SparseArray<DownloaderThread> mDownloaders = new SparseArray<DownloaderThread>(MAX_NUMBER_OF_THREADS);
-	final private HashMap<S, Integer> mRetries = new HashMap<S, Integer>();
+	// retry delays double from the base up to the max - with +-50% jitter
+	private static final long RETRY_BASE_DELAY = 500;
+	private static final long RETRY_MAX_DELAY = 60000;
 	
-	private boolean mNeedSleeping = true;
+	// rebuild the waiting heap when it holds this many more stale entries than items
+	private static final int MAX_STALE_ENTRIES = 64;
 	
+	/**
+	 * loads requested with a callback (something is waiting to show the result)
+	 */
+	public static final int PRIORITY_VISIBLE = 1;
+	
+	/**
+	 * loads requested with prefetch() - these only run when there is no visible item waiting
+	 */
+	public static final int PRIORITY_PREFETCH = 0;
+	
+	final private HashMap<S, QueueItem> mQueue = new HashMap<S, QueueItem>();
+	
+	// items waiting to be loaded - highest priority first, then latest request first
+	// entries are not removed on cancel or re-request only skipped when they come up (see pollNext)
+	final private PriorityQueue<QueueEntry> mWaiting = new PriorityQueue<QueueEntry>();
+	private long mSequence;
+	
+	final private HashMap<S, Retry> mRetries = new HashMap<S, Retry>();
+	final private Random mJitter = new Random();
+	
+	// items waiting for connection
+	final private ArrayList<QueueItem> mParked = new ArrayList<QueueItem>();
+	private ConnectionChangedListener mConnectionListener;
+	private boolean mListeningForConnection;
+	private int mOfflineWaits;
+	
+	private int mMaxNumberOfThreads = DEFAULT_MAX_NUMBER_OF_THREADS;
+	private int mRunningWorkers;
+	private ExecutorService mExecutor;
+	
+	/**
+	 * set the maximum number of threads loading (and decoding) at the same time for this loader<br/>
+	 * already running threads are not stopped
+	 * 
+	 * @param max
+	 */
+	public void setMaxNumberOfThreads(int max) {
+		synchronized(mQueue) {
+			mMaxNumberOfThreads = Math.max(1, max);
+		}
+	}
+	
+	/**
+	 * set the executor to load in<br/>
+	 * by default all loaders share LoaderThreadPool.getShared()<br/>
+	 * !note: the executor should be able to run at least as many tasks at once as setMaxNumberOfThreads allows
+	 * or items loading in other loaders sharing it will have to wait
+	 * 
+	 * @param executor - null to use the shared pool
+	 */
+	public void setExecutor(ExecutorService executor) {
+		synchronized(mQueue) {
+			mExecutor = executor;
+		}
+	}
+	
+	/**
+	 * load item with key 'key' and call back when finished<br/>
+	 * latest requests are loaded first
+	 * 
+	 * @param key
+	 * @param callback
+	 */
 	public void load(S key, Callback<S, T> callback) {
+		load(key, callback, PRIORITY_VISIBLE);
+	}
+	
+	/**
+	 * load item with key 'key' without anyone waiting for it (to have it in the cache when needed)<br/>
+	 * only loaded when no visible item is waiting
+	 * 
+	 * @param key
+	 */
+	public void prefetch(S key) {
+		load(key, null, PRIORITY_PREFETCH);
+	}
+	
+	/**
+	 * 
+	 * @param key
+	 * @param callback - may be null for prefetching
+	 * @param priority - PRIORITY_VISIBLE, PRIORITY_PREFETCH or anything in between or above
+	 */
+	public void load(S key, Callback<S, T> callback, int priority) {
 		synchronized(mQueue) {
 
             // check if already loading for this key
             QueueItem existing = mQueue.get(key);
             if (existing != null) {
-                if (!existing.callbacks.contains(callback)) {
+                if (callback != null && !existing.callbacks.contains(callback)) {
                     existing.callbacks.add(callback);
                 }
-
-                mQueueOrder.remove(key);
+                existing.priority = Math.max(existing.priority, priority);
             } else {
 
                 // new item or retry
-                mQueue.put(key, new QueueItem(key, callback));
+                existing = new QueueItem(key, callback);
+                existing.priority = priority;
+                mQueue.put(key, existing);
+            }
+            if (callback == null) {
+            	existing.prefetch = true;
+            }
+            if (existing.waiting) {
+            	
+            	// waiting for its retry time or for connection - will be scheduled then
+            	return;
+            }
+            if (!existing.downloading) {
+            	final long delay = getRetryDelay(key);
+            	if (delay > 0) {
+            		scheduleDelayed(existing, delay);
+            		return;
+            	}
+            	
+            	// (re)schedule - this also moves it in front of older requests with the same priority
+            	schedule(existing);
             }
-            mQueueOrder.add(0, key);
 
-			// start downloading (or do nothing if downloader is already working)
-			synchronized(DownloaderThread.class) {
-				for(int i = 0; i < MAX_NUMBER_OF_THREADS; ++i) {
-					if (mDownloaders.get(i) == null) {
-						mDownloaders.put(i, new DownloaderThread(i));
-Debug.logE("starting", mDownloaders.get(i).getId() + "");
-						mDownloaders.get(i).start();
-						break;
-					}
-				}
+			// start downloading (or do nothing if enough workers are already working)
+			startWorker();
+		}
+	}
+	
+	/**
+	 * start a new worker if there are less than allowed<br/>
+	 * !note: call in synchronized(mQueue)
+	 */
+	private void startWorker() {
+		if (mRunningWorkers < mMaxNumberOfThreads) {
+			final ExecutorService executor = mExecutor != null ? mExecutor : LoaderThreadPool.getShared();
+			++mRunningWorkers;
+			try {
+				executor.execute(new Worker());
+			} catch(RejectedExecutionException e) {
+				--mRunningWorkers;
+				Debug.logException(e);
 			}
 		}
 	}
@@ -81,16 +194,267 @@ Debug.logE("starting", mDownloaders.get(i).getId() + "");
 			QueueItem existing = mQueue.get(key);
 			if (existing != null) {
 				existing.callbacks.remove(callback);
-				if (existing.callbacks.isEmpty()) {
-					mQueue.remove(key);
-					mQueueOrder.remove(key);
+				if (existing.callbacks.isEmpty() && !existing.prefetch) {
+					
+					// nobody needs it - a waiting item is skipped, a running load may check isCancelled()
+					existing.cancelled = true;
+					removeFromQueue(existing);
 				}
 			}
 		}
 	}
 	
+	/**
+	 * !note: does nothing - loader threads do not sleep anymore, items not needed are cancelled in stopLoading
+	 * 
+	 * @param need
+	 */
+	@Deprecated
 	public void needSleeping(boolean need) {
-		mNeedSleeping = need;
+		;
+	}
+	
+	/**
+	 * put item in the waiting heap<br/>
+	 * !note: call in synchronized(mQueue)
+	 * 
+	 * @param item
+	 */
+	private void schedule(QueueItem item) {
+		item.entry = new QueueEntry(item, item.priority, ++mSequence);
+		mWaiting.add(item.entry);
+		
+		if (mWaiting.size() > mQueue.size() * 2 + MAX_STALE_ENTRIES) {
+			
+			// too many cancelled or rescheduled entries - drop them
+			final Iterator<QueueEntry> it = mWaiting.iterator();
+			final ArrayList<QueueEntry> valid = new ArrayList<QueueEntry>(mQueue.size());
+			while(it.hasNext()) {
+				final QueueEntry entry = it.next();
+				if (entry.isValid()) {
+					valid.add(entry);
+				}
+			}
+			mWaiting.clear();
+			mWaiting.addAll(valid);
+		}
+	}
+	
+	/**
+	 * put item in the waiting heap after 'delay' milliseconds<br/>
+	 * !note: call in synchronized(mQueue)
+	 * 
+	 * @param item
+	 * @param delay
+	 */
+	private void scheduleDelayed(final QueueItem item, long delay) {
+		item.waiting = true;
+		item.entry = null;
+		postDelayed(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized(mQueue) {
+					reschedule(item);
+					startWorker();
+				}
+			}
+		}, delay);
+	}
+	
+	/**
+	 * put a waiting item back in the heap if it is still needed<br/>
+	 * !note: call in synchronized(mQueue)
+	 * 
+	 * @param item
+	 */
+	private void reschedule(QueueItem item) {
+		item.waiting = false;
+		if (mQueue.get(item.item) == item && !item.cancelled && !item.downloading) {
+			schedule(item);
+		}
+	}
+	
+	/**
+	 * park item till ConnectionChecker reports a connection<br/>
+	 * if connectivity changes can not be listened to retry after a growing delay
+	 * 
+	 * @param item
+	 */
+	private void waitForConnection(QueueItem item) {
+		boolean register = false;
+		synchronized(mQueue) {
+			item.downloading = false;
+			if (item.cancelled) {
+				return;
+			}
+			item.waiting = true;
+			item.entry = null;
+			mParked.add(item);
+			
+			if (mConnectionListener == null) {
+				mConnectionListener = new ConnectionChangedListener() {
+
+					@Override
+					public void onConnectionChanged(boolean connected) {
+						if (connected) {
+							onConnected(this);
+						}
+					}
+				};
+				register = true;
+			}
+		}
+		if (!register) {
+			return;
+		}
+		
+Debug.logD("LaizyLoader", "Waiting for connection!");
+		boolean listening = false;
+		try {
+			listening = ConnectionChecker.addListener(Global.getContext(), mConnectionListener);
+		} catch(Throwable e) {
+			Debug.logException(e);
+		}
+		final ConnectionChangedListener listener;
+		synchronized(mQueue) {
+			listener = mConnectionListener;
+			mListeningForConnection = listening;
+		}
+		if (!listening) {
+			retryConnectionLater(listener);
+		}
+	}
+	
+	/**
+	 * check the connection again after a growing delay
+	 * 
+	 * @param listener
+	 */
+	private void retryConnectionLater(final ConnectionChangedListener listener) {
+		final long delay;
+		synchronized(mQueue) {
+			delay = getBackoff(++mOfflineWaits);
+		}
+		postDelayed(new Runnable() {
+
+			@Override
+			public void run() {
+				onConnected(listener);
+			}
+		}, delay);
+	}
+	
+	/**
+	 * connection is back (or it is time to try again) - put all parked items back to the heap<br/>
+	 * items stay parked if the workers still could not load (ie. connecting or only on mobile data when
+	 * wifi is needed) - till the next connection change or the next backoff if not listening to changes
+	 * 
+	 * @param listener
+	 */
+	private void onConnected(ConnectionChangedListener listener) {
+		boolean connected = true;
+		try {
+			connected = ConnectionChecker.check(Global.getContext(), false);
+		} catch(Throwable e) {
+			Debug.logException(e);
+		}
+		
+		final boolean listening;
+		synchronized(mQueue) {
+			if (listener != mConnectionListener) {
+				
+				// already handled
+				return;
+			}
+			listening = mListeningForConnection;
+			if (connected) {
+				mConnectionListener = null;
+				mListeningForConnection = false;
+				
+				for(QueueItem item : mParked) {
+					reschedule(item);
+				}
+				mParked.clear();
+				
+				for(int i = 0; i < mMaxNumberOfThreads; ++i) {
+					startWorker();
+				}
+			}
+		}
+		if (!connected) {
+			if (!listening) {
+				retryConnectionLater(listener);
+			}
+			return;
+		}
+		
+		try {
+			ConnectionChecker.removeListener(Global.getContext(), listener);
+		} catch(Throwable e) {
+			Debug.logException(e);
+		}
+	}
+	
+	/**
+	 * time to wait before the next try of an item which failed before
+	 * 
+	 * @param key
+	 * @return 0 if it can be loaded now
+	 */
+	private long getRetryDelay(S key) {
+		synchronized(mRetries) {
+			final Retry retry = mRetries.get(key);
+			if (retry == null) {
+				return 0;
+			}
+			return Math.max(0, retry.notBefore - System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * exponential backoff with jitter
+	 * 
+	 * @param tries - number of failed tries so far (>= 1)
+	 * @return delay in milliseconds
+	 */
+	private long getBackoff(int tries) {
+		final long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << Math.min(tries - 1, 16));
+		synchronized(mJitter) {
+			return delay / 2 + (long) (mJitter.nextDouble() * delay);
+		}
+	}
+	
+	/**
+	 * take the next item to load from the waiting heap and mark it downloading<br/>
+	 * !note: call in synchronized(mQueue)
+	 * 
+	 * @return null if there is nothing to load
+	 */
+	private QueueItem pollNext() {
+		QueueEntry entry;
+		while((entry = mWaiting.poll()) != null) {
+			if (entry.isValid()) {
+				entry.item.entry = null;
+				entry.item.downloading = true;
+				return entry.item;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * !note: call in synchronized(mQueue)
+	 * 
+	 * @param item
+	 */
+	private void removeFromQueue(QueueItem item) {
+		
+		// a new item may have been added for the same key after this one was cancelled
+		if (mQueue.get(item.item) == item) {
+			mQueue.remove(item.item);
+		}
+		item.entry = null;
 	}
 	
 	/**
@@ -100,10 +464,70 @@ Debug.logE("starting", mDownloaders.get(i).getId() + "");
 		public S item;
 		final ArrayList<Callback<S, T>> callbacks = new ArrayList<Callback<S, T>>();
 		boolean downloading = false;
+		boolean prefetch = false;
+		boolean waiting = false;
+		int priority = PRIORITY_VISIBLE;
+		volatile boolean cancelled = false;
+		
+		// current entry in the waiting heap
+		QueueEntry entry;
 
 		public QueueItem(S item, Callback<S, T> callback) {
 			this.item = item;
-			callbacks.add(callback);
+			if (callback != null) {
+				callbacks.add(callback);
+			}
+		}
+		
+		/**
+		 * true if nobody needs this item anymore - loadInBackground may stop early
+		 * 
+		 * @return
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+	
+	/**
+	 * @class Retry
+	 */
+	private static class Retry {
+		int count;
+		
+		// the item is rescheduled for this time after a failure - a load() before it only attaches
+		long notBefore;
+	}
+	
+	/**
+	 * @class QueueEntry
+	 */
+	private class QueueEntry implements Comparable<QueueEntry> {
+		final QueueItem item;
+		final int priority;
+		final long sequence;
+		
+		QueueEntry(QueueItem item, int priority, long sequence) {
+			this.item = item;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+		
+		/**
+		 * false if the item was cancelled, rescheduled or taken since this entry was added
+		 * 
+		 * @return
+		 */
+		boolean isValid() {
+			return item.entry == this && !item.cancelled && !item.downloading;
+		}
+
+		@Override
+		public int compareTo(QueueEntry another) {
+			if (priority != another.priority) {
+				return priority > another.priority ? -1 : 1;
+			}
+			return sequence > another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
 		}
 	}
 	
@@ -127,56 +551,57 @@ Debug.logE("starting", mDownloaders.get(i).getId() + "");
 	}
 
 	/**
-	 * @class DownloaderThread
+	 * @class Worker
+	 * 
+	 * loads items until the queue is empty
 	 */
-	private class DownloaderThread extends Thread {
+	private class Worker implements Runnable {
 		
-		int id;
 		QueueItem current;
-		
-		public DownloaderThread(int id) {
-			this.id = id;
-			setPriority(Thread.MIN_PRIORITY);
-		}
+		boolean finished;
 
 		@Override
 		public void run() {
-			while(true) {
-				current = null;
-				synchronized(mQueue) {
-					if (!mQueue.isEmpty()) {
-						
-						// set first (which is not downloading) from queue for downloading
-						for(S key : mQueueOrder) {
-							current = mQueue.get(key);
-							if (current != null && !current.downloading) {
-								break;
-							}
-						
-						}
-						if (current == null || current.downloading) {
-							current = null;
-						} else {
-							current.downloading = true;
+			try {
+				loadAll();
+			} finally {
+				if (!finished) {
+					
+					// loadInBackground threw - do not leave the item or the worker count behind
+					synchronized(mQueue) {
+						--mRunningWorkers;
+						if (current != null) {
+							current.downloading = false;
+							removeFromQueue(current);
 						}
 					}
+				}
+			}
+		}
+		
+		private void loadAll() {
+			while(true) {
+				synchronized(mQueue) {
+					
+					// highest priority, latest requested item first
+					current = pollNext();
 					if (current == null) {
 						
-						// everthing is taken care of? this means that this thread is finished
-						mDownloaders.remove(id);
-Debug.logE("remove thread", getId() + "");
+						// everthing is taken care of? this means that this worker is finished
+						--mRunningWorkers;
+						finished = true;
 						break;
 					}
 				}
 
-				Integer retryCnt = 0;
+				Retry retry;
 				synchronized(mRetries) {
-					retryCnt = mRetries.get(current.item);
-					if (retryCnt == null) {
+					retry = mRetries.get(current.item);
+					if (retry == null) {
 						
 						// first here
-						mRetries.put(current.item, retryCnt = 0);
-					} else if (retryCnt == MAX_NUMBER_OF_RETRIES) {
+						mRetries.put(current.item, retry = new Retry());
+					} else if (retry.count == MAX_NUMBER_OF_RETRIES) {
 Debug.logE("laizy loader", "max number of retries exceeded (" + current.item.toString() + ")");
 						// max number of retries exceeded - show error
 						final S item = current.item;
@@ -184,42 +609,30 @@ Debug.logE("laizy loader", "max number of retries exceeded (" + current.item.toS
 						onLoadFailure(current);
 
 						synchronized(mQueue) {
-							mQueue.remove(current.item);
-							mQueueOrder.remove(current.item);
+							removeFromQueue(current);
 						}
 						
 						continue;
 					}
 				}
 
-				if (mNeedSleeping) {
-					try {
-						
-						// sleep a bit - more for every retry
-						// always sleep mainly for images, because if not
-						// there is some kind of os bug preventing some images to show
-						// also we use sleep to skip unwanted elements while scrolling a list
-						sleep(retryCnt * 75 + 275);
-					} catch (InterruptedException e) {
-						;
-					}
-				}
+				if (current.cancelled) {
 
-				synchronized(mQueue) {
-					if (current.callbacks.isEmpty()) {
-
-						// image not needed anymore
-						continue;
-					} 
+					// not needed anymore
+					continue;
 				}
 		
 				// load in background
                 boolean hasConnectionOrLoaded = true;
+                long retryDelay = 0;
 
 				if (loadInBackground(current)) {
 					synchronized(mRetries) {
 						mRetries.remove(current.item);
 					}
+					synchronized(mQueue) {
+						mOfflineWaits = 0;
+					}
 				} else {
 					
 					// add to retry count (unless there is a connection problem)
@@ -229,34 +642,39 @@ Debug.logE("laizy loader", "max number of retries exceeded (" + current.item.toS
 						;
 					}
 
-                    synchronized(mRetries) {
-                        mRetries.put(current.item, retryCnt + (hasConnectionOrLoaded ? 1 : 0));
+                    if (hasConnectionOrLoaded) {
+                    	
+                    	// next request for this item waits for a growing time
+                    	final long delay = getBackoff(retry.count + 1);
+	                    synchronized(mRetries) {
+	                    	++retry.count;
+	                    	retry.notBefore = System.currentTimeMillis() + delay;
+	                    	if (retry.count < MAX_NUMBER_OF_RETRIES) {
+	                    		retryDelay = delay;
+	                    	}
+	                    }
                     }
 				}
 
-                if (hasConnectionOrLoaded) {
+                if (retryDelay > 0) {
+                	
+                	// try again by itself when its time comes - callbacks stay attached
+                	synchronized(mQueue) {
+                		current.downloading = false;
+                		if (!current.cancelled && mQueue.get(current.item) == current) {
+                			scheduleDelayed(current, retryDelay);
+                		}
+                	}
+                } else if (hasConnectionOrLoaded) {
 
                     // ok downloaded (or failed - you have to handle failure outside)
                     synchronized (mQueue) {
-                        mQueue.remove(current.item);
-                        mQueueOrder.remove(current.item);
+                        removeFromQueue(current);
                     }
                 } else {
-                    synchronized (mQueue) {
-                        current.downloading = false;
-                    }
-                    try {
-                        Debug.logD("LaizyLoader", "Waiting a bit for connection!");
-                        int maxTry = 50;
-                        while(!ConnectionChecker.check(Global.getContext(), false) && !isInterrupted() && maxTry > 0) {
-
-                            // wait a bit for connection
-                            Thread.sleep(100);
-                            --maxTry;
-                        }
-                    } catch (InterruptedException e) {
-                        ;
-                    }
+                	
+                	// no connection - try again when there is
+                	waitForConnection(current);
                 }
 			}
 		}
@@ -267,11 +685,23 @@ Debug.logE("laizy loader", "max number of retries exceeded (" + current.item.toS
 
 			// go through all callback for this item
 			for(Callback<S, T> iv : current.callbacks) {
+				onDeliver(iv, result);
                 iv.onLoadFinished(current.item, result);
 			}
 		}
 	}
 	
+	/**
+	 * called right before a result is given to a callback<br/>
+	 * !note: called in synchronized(mQueue)
+	 * 
+	 * @param callback
+	 * @param result
+	 */
+	protected void onDeliver(Callback<S, T> callback, T result) {
+		;
+	}
+	
 	protected void onLoadFailure(QueueItem current) {
 		synchronized(mQueue) {
 		
@@ -0,0 +1,127 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package ds.framework.v4.io;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * thread pools for background i/o (LaizyLoader and subclasses)<br/>
+ * threads are kept alive for a while after the work runs out so bursts do not pay for thread creation
+ */
+public class LoaderThreadPool {
+
+	public static final int DEFAULT_PARALLELISM = 5;
+	public static final long DEFAULT_KEEP_ALIVE = 30000;
+	public static final int DEFAULT_THREAD_PRIORITY = Thread.MIN_PRIORITY;
+
+	private static ThreadPoolExecutor sShared;
+	private static PriorityThreadFactory sSharedFactory;
+
+	/**
+	 * the framework-wide i/o pool - all loaders use this unless they were given their own executor
+	 *
+	 * @return
+	 */
+	public static synchronized ExecutorService getShared() {
+		if (sShared == null) {
+			sSharedFactory = new PriorityThreadFactory("LaizyLoader", DEFAULT_THREAD_PRIORITY);
+			sShared = create(DEFAULT_PARALLELISM, DEFAULT_KEEP_ALIVE, sSharedFactory);
+		}
+		return sShared;
+	}
+
+	/**
+	 * change the framework-wide i/o pool<br/>
+	 * !note: thread priority only affects threads created after this call
+	 *
+	 * @param parallelism - maximum number of threads
+	 * @param keepAlive - in milliseconds, how long an idle thread waits for new work
+	 * @param threadPriority - java thread priority (Thread.MIN_PRIORITY - Thread.MAX_PRIORITY)
+	 */
+	public static synchronized void configureShared(int parallelism, long keepAlive, int threadPriority) {
+		getShared();
+
+		parallelism = Math.max(1, parallelism);
+		if (parallelism > sShared.getMaximumPoolSize()) {
+			sShared.setMaximumPoolSize(parallelism);
+			sShared.setCorePoolSize(parallelism);
+		} else {
+			sShared.setCorePoolSize(parallelism);
+			sShared.setMaximumPoolSize(parallelism);
+		}
+		sShared.setKeepAliveTime(Math.max(1, keepAlive), TimeUnit.MILLISECONDS);
+		sSharedFactory.priority = threadPriority;
+	}
+
+	/**
+	 * create a new pool
+	 *
+	 * @param name - thread name prefix
+	 * @param parallelism - maximum number of threads
+	 * @param keepAlive - in milliseconds, how long an idle thread waits for new work
+	 * @param threadPriority - java thread priority (Thread.MIN_PRIORITY - Thread.MAX_PRIORITY)
+	 * @return
+	 */
+	public static ThreadPoolExecutor create(String name, int parallelism, long keepAlive, int threadPriority) {
+		return create(parallelism, keepAlive, new PriorityThreadFactory(name, threadPriority));
+	}
+
+	/**
+	 *
+	 * @param parallelism
+	 * @param keepAlive
+	 * @param factory
+	 * @return
+	 */
+	private static ThreadPoolExecutor create(int parallelism, long keepAlive, ThreadFactory factory) {
+		parallelism = Math.max(1, parallelism);
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism,
+				Math.max(1, keepAlive), TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+
+		// let every thread die when idle
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * @class PriorityThreadFactory
+	 */
+	private static class PriorityThreadFactory implements ThreadFactory {
+
+		final private AtomicInteger mCount = new AtomicInteger();
+		final private String mName;
+		volatile int priority;
+
+		PriorityThreadFactory(String name, int priority) {
+			mName = name;
+			this.priority = priority;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, mName + " #" + mCount.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(priority);
+			return thread;
+		}
+	}
+}
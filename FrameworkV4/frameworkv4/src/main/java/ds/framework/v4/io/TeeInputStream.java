@@ -0,0 +1,95 @@
+/*
+	Copyright 2016 Dániel Sólyom
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+*/
+
+package ds.framework.v4.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * input stream copying everything read from it into an output stream<br/>
+ * skipped bytes are read and copied too so the copy is always complete<br/>
+ * !note: mark/reset is not supported
+ */
+public class TeeInputStream extends FilterInputStream {
+
+	final private OutputStream mOut;
+	final private byte[] mSkipBuffer = new byte[4096];
+
+	public TeeInputStream(InputStream in, OutputStream out) {
+		super(in);
+		mOut = out;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final int b = in.read();
+		if (b != -1) {
+			mOut.write(b);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		final int read = in.read(buffer, offset, count);
+		if (read > 0) {
+			mOut.write(buffer, offset, read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while(skipped < n) {
+			final int read = read(mSkipBuffer, 0, (int) Math.min(mSkipBuffer.length, n - skipped));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * read (and copy) everything left in the input
+	 *
+	 * @throws IOException
+	 */
+	public void drain() throws IOException {
+		while(read(mSkipBuffer, 0, mSkipBuffer.length) != -1) {
+			;
+		}
+	}
+}
@@ -24,9 +24,11 @@ import java.util.HashMap;
 
 import ds.framework.v4.app.DSActivity;
 import ds.framework.v4.data.AbsAsyncData;
+import ds.framework.v4.data.CursorData;
 import ds.framework.v4.template.Template;
 
-abstract public class AbsTemplateViewHolderAdapter<T> extends RecyclerViewHeaderedAdapter {
+abstract public class AbsTemplateViewHolderAdapter<T> extends RecyclerViewHeaderedAdapter
+        implements CursorData.OnRowsChangedListener {
 
     protected DSActivity mIn;
     protected Template mTemplate;
@@ -110,7 +112,13 @@ abstract public class AbsTemplateViewHolderAdapter<T> extends RecyclerViewHeader
             return;
         }
 
+        if (mRecyclerViewData instanceof CursorData) {
+            ((CursorData) mRecyclerViewData).setOnRowsChangedListener(null);
+        }
         mRecyclerViewData = data;
+        if (data instanceof CursorData) {
+            ((CursorData) data).setOnRowsChangedListener(this);
+        }
 
         super.invalidate();
     }
@@ -127,6 +135,23 @@ abstract public class AbsTemplateViewHolderAdapter<T> extends RecyclerViewHeader
         return mRecyclerViewData == data;
     }
 
+// implements CursorData.OnRowsChangedListener
+
+    @Override
+    public void onRowsRemoved(CursorData data, int position, int count) {
+        notifyItemRangeRemoved(position + (mHeaderView != null ? 1 : 0), count);
+    }
+
+    @Override
+    public void onRowsInserted(CursorData data, int position, int count) {
+        notifyItemRangeInserted(position + (mHeaderView != null ? 1 : 0), count);
+    }
+
+    @Override
+    public void onRowsChanged(CursorData data, int position, int count) {
+        notifyItemRangeChanged(position + (mHeaderView != null ? 1 : 0), count);
+    }
+
     /**
      * @param data
      * @param viewType
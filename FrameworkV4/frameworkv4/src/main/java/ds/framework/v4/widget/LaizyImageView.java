@@ -67,6 +67,8 @@ public class LaizyImageView extends ImageView implements Callback<ImageInfo, Bit
 	
 	private ImageInfo mCurrentImageInfo;
 	
+	private Bitmap mShownBitmap;
+	
 	private ScaleType mOriginalScaleType;
 
 	private OnImageSetListener mOnImageSetListener;
@@ -83,6 +85,9 @@ public class LaizyImageView extends ImageView implements Callback<ImageInfo, Bit
 
 	private boolean mScaleSize;
 	
+	// loading was cancelled when detached - restart when attached again
+	private boolean mReloadOnAttach;
+	
 	public LaizyImageView(Context context) {
 		super(context);
 	}
@@ -170,10 +175,37 @@ public class LaizyImageView extends ImageView implements Callback<ImageInfo, Bit
 		}
 	}
 
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		
+		if (mImageState == STATE_LOADING && mCurrentImageInfo != null) {
+			
+			// not visible anymore - let the loader skip it
+			stopLoading();
+			synchronized(LaizyImageView.class) {
+				mCurrentImageInfo = null;
+			}
+			mReloadOnAttach = true;
+		}
+	}
+	
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		
+		if (mReloadOnAttach) {
+			mReloadOnAttach = false;
+			load();
+		}
+	}
+
 	/**
 	 * load and show image - defaultRes is 	must be a valid resource - no image refresh will happen otherwise
 	 */
 	public void load() {
+		mReloadOnAttach = false;
+		
 		if (mInfo == null || mInfo.info.url == null || mInfo.info.url.trim().length() == 0) {
 			stopLoading();
 
@@ -243,20 +275,26 @@ public class LaizyImageView extends ImageView implements Callback<ImageInfo, Bit
 
 			@Override
 			public void run() {
-				synchronized(LaizyImageView.class) { // synchronize all info change and check
-					if (mCurrentImageInfo == null) {
-						return;
-					} else if (mCurrentImageInfo.equals(info)) {
-						setImage(result, mInfo.needFading);
-						return;
+				try {
+					synchronized(LaizyImageView.class) { // synchronize all info change and check
+						if (mCurrentImageInfo == null) {
+							return;
+						} else if (mCurrentImageInfo.equals(info)) {
+							setImage(result, mInfo.needFading);
+							return;
+						}
+	
+						// need to reload
+						mCurrentImageInfo = null;
 					}
-
+	
 					// need to reload
-					mCurrentImageInfo = null;
+					load();
+				} finally {
+					
+					// the loader held it for this delivery - setImage took its own hold if shown
+					ImageLoader.releaseBitmap(result);
 				}
-
-				// need to reload
-				load();
 			}
 		});
 	}
@@ -298,6 +336,11 @@ public class LaizyImageView extends ImageView implements Callback<ImageInfo, Bit
 				setVisibility(View.VISIBLE);
 			}
 			setImageBitmap(bmp);
+			if (mShownBitmap != bmp) {
+				releaseShownBitmap();
+				ImageLoader.acquireBitmap(bmp);
+				mShownBitmap = bmp;
+			}
 			
 			restoreScaleType();
 			
@@ -337,6 +380,7 @@ public class LaizyImageView extends ImageView implements Callback<ImageInfo, Bit
 			if (mNeedVisibility) {
 				setVisibility(View.VISIBLE);
 			}
+			releaseShownBitmap();
 			setImageResource(mInfo.defaultResID);
 
 			if (mInfo.defaultIsAnimated) {				
@@ -377,6 +421,7 @@ public class LaizyImageView extends ImageView implements Callback<ImageInfo, Bit
 			if (mNeedVisibility) {
 				setVisibility(View.VISIBLE);
 			}
+			releaseShownBitmap();
 			setImageResource(info.loadingResID);
 			
 			setTempScaleType(mInfo.loadingScaleType != null ? mInfo.loadingScaleType : mLoadingScaleType);
@@ -410,6 +455,7 @@ public class LaizyImageView extends ImageView implements Callback<ImageInfo, Bit
 		if (mNeedVisibility) {
 			setVisibility(View.VISIBLE);
 		}
+		releaseShownBitmap();
 		setImageResource(mInfo.errorResID);
 
 		setTempScaleType(mInfo.errorScaleType != null ? mInfo.errorScaleType : mErrorScaleType);
@@ -419,6 +465,16 @@ public class LaizyImageView extends ImageView implements Callback<ImageInfo, Bit
 		}
 	}
 	
+	/**
+	 * let the image loader reuse the bitmap we showed so far
+	 */
+	private void releaseShownBitmap() {
+		if (mShownBitmap != null) {
+			ImageLoader.releaseBitmap(mShownBitmap);
+			mShownBitmap = null;
+		}
+	}
+	
 	/**
 	 * 
 	 * @param scaleType